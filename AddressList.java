@@ -0,0 +1,53 @@
+//Jackson Lee
+
+import java.util.*;
+
+public class AddressList {
+    /*
+     * A growable list of row addresses backed by a long[]
+     * Used by the range searches so a search adds one array instead of one
+     * boxed Long and one list node for every key in the range
+     */
+    
+    private long[] addrs;
+    private int size;
+    
+    public AddressList() {
+        this(16);
+    }
+    
+    public AddressList(int capacity) {
+        addrs = new long[Math.max(1, capacity)];
+        size = 0;
+    }
+    
+    public void add(long addr) {
+        if(size == addrs.length) {
+            addrs = Arrays.copyOf(addrs, 2 * size);
+        }
+        
+        addrs[size] = addr;
+        size++;
+    }
+    
+    public long get(int i) {
+        //PRE: 0 <= i < size()
+        return addrs[i];
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    public void clear() {
+        size = 0;
+    }
+    
+    public long[] toArray() {
+        return Arrays.copyOf(addrs, size);
+    }
+}
\ No newline at end of file
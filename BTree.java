@@ -1,20 +1,67 @@
 // Jackson Lee
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 public class BTree {    
     RandomAccessFile f;
+    FileChannel fc;//used for whole-block positional reads and writes of f
     int order;
+    int maxKeys;//keys in a full node, see BTreeNode
+    int minKeys;//a node other than the root with fewer keys borrows or merges
     int blockSize;
-    long root;
-    long free;
+    volatile long root;
+    FreeMap map;//the blocks in use, block i starts at HEADER_SIZE + i * blockSize
+    String mapFile;//where map is saved when the tree is closed
+    long end;//logical end of the file, blocks that only exist in the pool are counted
+    boolean mapped;//true when blocks are accessed through a memory mapping of f
+    BufferPool pool;
+    WriteAheadLog log;//null in mapped mode
+    boolean ownsLog;//false when the log is shared with a DBTable that commits
+    int logFile;//the number of f in the log
+    volatile Executor executor;//runs the async methods, null for the shared IOScheduler threads
+    BulkLoader loading;//the bulk load that is not finished, other changes wait for it to finish
+    
+    /*
+     * The frame that holds a node has a StampedLock that works as its version,
+     * see BufferPool. A node is written under its write lock, which moves the
+     * version on. A reader decodes a node from its frame without locking and
+     * keeps the copy only if the version did not move.
+     * 
+     * The tree is a B-link tree: every node has a right link to the next node on
+     * its level and a high key, the first key that belongs to the right of it.
+     * A split writes the new right node before the old node links to it, so a
+     * reader that reaches a node after a split moves right to find its key.
+     * Only one insert or remove runs at a time, and it writes one node at a time.
+     * 
+     * Keys only move left when a remove borrows or merges, and a merge frees a
+     * node. Those changes are made under the write lock of structure, and a
+     * reader checks structure after every node, so it never uses a node that
+     * was freed or keys that moved away from it.
+     */
+    private StampedLock structure = new StampedLock();
+    
+    static final int POOL_FRAMES = 64;
+    static final int HEADER_SIZE = 20;
+    static final int MAGIC = 0x424C4E4B;//"BLNK", the tree is a B-link tree
+    static final int FORMAT_VERSION = 1;//moves on when the layout of a node changes
+    static final int LINEAR_KEYS = 16;
+    static final long CHECKPOINT_SIZE = 16 << 20;
+    static final int OPTIMISTIC_TRIES = 4;//optimistic tries of a reader before it holds off merges
+    static final int GROUP_LEAVES = 8;//leaves one group of insertBatch may fill, so a group fits in the pool
     
     private class BTreeNode {
         private int count;
         private int[] keys = new int[order -1];
         private long[] children = new long[order];
+        private int highKey;//only used when there is a right link
         private long currentAddr;
+        //children[order - 1] is the right link and keys[order - 2] is the high key,
+        //so a node holds at most maxKeys = order - 2 keys
         //constructors and other methods
         
         private BTreeNode(int c, int[] k, long[] ch, long addr) {
@@ -25,43 +72,105 @@ public class BTree {
         }
         
         private BTreeNode(long addr) throws IOException {
-            //System.out.println("f is seeking:"+addr);
-            f.seek(addr);
+            //only the writer reads a node this way, readers use readNode
+            this(pool.pin(addr), addr);
+            pool.unpin(addr, false);
+        }
+        
+        private BTreeNode(ByteBuffer b, long addr) {
+            //decode the node at the start of b with absolute gets, b may be a frame other threads read
+            int pos = 0;
             
-            count = f.readInt();
+            count = b.getInt(pos);
+            pos += 4;
             
-            for(int i = 0; i < keys.length; i++) {
-                keys[i] = f.readInt();
+            for(int i = 0; i < keys.length; i++, pos += 4) {
+                keys[i] = b.getInt(pos);
             }
             
-            for(int i = 0; i < children.length; i++) {
-                children[i] = f.readLong();
+            for(int i = 0; i < children.length; i++, pos += 8) {
+                children[i] = b.getLong(pos);
             }
             
+            highKey = keys[order - 2];
             currentAddr = addr;
         }
         
         private void writeNode(long addr) throws IOException {
-            f.seek(addr);
+            //the node goes to the pool, f is only written when the frame is evicted or flushed
+            //the write lock of the frame makes readers that decoded the node while it changed try again
+            ByteBuffer b = pool.pinWrite(addr);
+            keys[order - 2] = highKey;
             
-            f.writeInt(count);
+            b.putInt(count);
             
             for(int i = 0; i < keys.length; i++) {
-                f.writeInt(keys[i]);
+                b.putInt(keys[i]);
             }
             
             for(int i = 0; i < children.length; i++) {
-                f.writeLong(children[i]);
+                b.putLong(children[i]);
             }
+            
+            pool.unpinWrite(addr);
+        }
+        
+        private long right() {
+            return children[order - 1];
+        }
+        
+        private boolean movesRight(int k) {
+            //true if k belongs to a node to the right of this one
+            return right() != 0 && k >= highKey;
         }
     }
     
+    private class Op {
+        //the state of one insert or remove, so no operation leaves anything in the tree's fields
+        
+        private Stack<BTreeNode> path = new Stack<>();
+        private boolean split = true;
+        private int val;
+        private long loc;
+        private int splitVal;
+    }
+    
     public BTree(String filename, int bsize) throws IOException {
+        this(filename, bsize, POOL_FRAMES);
+    }
+    
+    public BTree(String filename, int bsize, int poolFrames) throws IOException {
+        this(filename, bsize, poolFrames, false, null, 0);
+    }
+    
+    public BTree(String filename, int bsize, boolean mapped) throws IOException {
+        this(filename, bsize, POOL_FRAMES, mapped, null, 0);
+    }
+    
+    BTree(String filename, int bsize, WriteAheadLog wal, int walFile) throws IOException {
+        //make a new B+Tree whose changes go to a log that is committed by the caller
+        this(filename, bsize, POOL_FRAMES, false, wal, walFile);
+    }
+    
+    private BTree(String filename, int bsize, int poolFrames, boolean mapped, WriteAheadLog wal, int walFile) throws IOException {
         //bsize is the block size. This value is used to calculate the order of the tree
         //all B+Tree nodes will use bsize bytes
+        //poolFrames is the number of blocks the buffer pool keeps in memory
+        //if mapped is true the file is memory mapped and the buffer pool is not used
         //make a new B+Tree
         
+        if(bsize < 48) {
+            //a node must hold 2 keys besides its high key
+            throw new IllegalArgumentException("block size must be at least 48");
+        }
+        
+        if(poolFrames < 1) {
+            throw new IllegalArgumentException("the buffer pool needs at least one frame");
+        }
+        
         order = bsize/12;
+        maxKeys = order - 2;
+        minKeys = maxKeys / 2;
         blockSize = bsize;
         File path = new File(filename);
         
@@ -70,37 +179,177 @@ public class BTree {
         }
         
         f = new RandomAccessFile(path, "rw");
+        fc = f.getChannel();
         
         root = 0;
-        free = 0;
+        map = new FreeMap(0);
+        mapFile = filename + "Map";
+        new File(mapFile).delete();
+        
+        writeHeader();
         
-        f.writeLong(root);
-        f.writeLong(free);
-        f.writeInt(blockSize);
+        end = HEADER_SIZE;
+        this.mapped = mapped;
+        pool = mapped ? new BufferPool(fc, blockSize, HEADER_SIZE, end) : new BufferPool(fc, blockSize, HEADER_SIZE, poolFrames);
+        useLog(filename, wal, walFile);
     }
     
     public BTree(String filename) throws IOException {
+        this(filename, false, null, 0);
+    }
+    
+    public BTree(String filename, boolean mapped) throws IOException {
+        this(filename, mapped, null, 0);
+    }
+    
+    BTree(String filename, WriteAheadLog wal, int walFile) throws IOException {
+        //open a B+Tree whose changes go to a log that is committed by the caller
+        //the caller must have recovered the log
+        this(filename, false, wal, walFile);
+    }
+    
+    private BTree(String filename, boolean mapped, WriteAheadLog wal, int walFile) throws IOException {
         //open an existing B+Tree
+        //if mapped is true the file is memory mapped and the buffer pool is not used
+        //changes that were committed to the log but not written to the file are replayed first
         
         File path = new File(filename);
         
-        f = new RandomAccessFile(path, "rw");
+        if(wal == null) {
+            WriteAheadLog.recover(filename + "Log", new String[] {filename});
+        }
         
-        f.seek(0);
+        f = new RandomAccessFile(path, "rw");
+        fc = f.getChannel();
+        
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        BufferPool.readFully(fc, header, 0);
+        header.flip();
+        root = header.getLong();
+        int magic = header.getInt();
+        int version = header.getInt();
+        blockSize = header.getInt();
+        
+        if(magic != MAGIC || version != FORMAT_VERSION) {
+            //older files have 0 or the head of a free list here, their nodes have no right links
+            f.close();
+            throw new IOException(filename + " is not a B-link tree of format version " + FORMAT_VERSION);
+        }
         
-        root = f.readLong();
-        free = f.readLong();
-        blockSize = f.readInt();
         order = blockSize/12;
+        maxKeys = order - 2;
+        minKeys = maxKeys / 2;
+        
+        end = f.length();
+        this.mapped = mapped;
+        pool = mapped ? new BufferPool(fc, blockSize, HEADER_SIZE, end) : new BufferPool(fc, blockSize, HEADER_SIZE, POOL_FRAMES);
+        useLog(filename, wal, walFile);
+        
+        mapFile = filename + "Map";
+        map = FreeMap.open(mapFile);
+        
+        if(map == null) {
+            buildMap();
+        }
+        
+        end = block(map.size());
+        pool.grow(end);
+    }
+    
+    private void buildMap() throws IOException {
+        //the tree was not closed, every block that is not reachable from the root is free
+        
+        map = new FreeMap((int) ((end - HEADER_SIZE + blockSize - 1) / blockSize));
+        
+        ArrayDeque<Long> todo = new ArrayDeque<>();
+        
+        if(root != 0) {
+            todo.push(root);
+        }
+        
+        while(!todo.isEmpty()) {
+            BTreeNode n = new BTreeNode(todo.pop());
+            map.use(slot(n.currentAddr));
+            
+            for(int i = 0; i < n.count + 1 && n.count > 0; i++) {
+                todo.push(n.children[i]);
+            }
+        }
+    }
+    
+    private void useLog(String filename, WriteAheadLog wal, int walFile) throws IOException {
+        //a tree that is not part of a table keeps its own log in filename + "Log"
+        //a memory mapped tree is not logged, the mapping can write a page at any time
+        
+        if(wal != null) {
+            log = wal;
+            ownsLog = false;
+            logFile = walFile;
+        } else if(!mapped) {
+            log = new WriteAheadLog(filename + "Log");
+            ownsLog = true;
+            logFile = 0;
+        }
+        
+        if(log != null) {
+            pool.useLog(log, logFile);
+        }
+    }
+    
+    synchronized void logChanges() throws IOException {
+        //log every block changed since the last call and the header
+        
+        if(log == null) {
+            return;
+        }
+        
+        pool.logChanges();
+        log.write(logFile, 0, header());
+    }
+    
+    void committed(long end) {
+        //the blocks logged so far are committed by the record that ends at end in the log
+        if(log != null) {
+            pool.committed(end);
+        }
     }
     
-    private Stack<BTreeNode> path;
-    private boolean split;
-    private int val = 0;
-    private long loc = 0;
-    private int splitVal;
+    private void endOp() throws IOException {
+        //the changes of one operation are logged together
+        //a tree with its own log commits them, a table commits its row with them
+        
+        if(log == null || !ownsLog) {
+            return;
+        }
+        
+        logChanges();
+        committed(log.commit());
+        
+        if(log.size > CHECKPOINT_SIZE) {
+            checkpoint();
+        }
+    }
+    
+    public void sync() throws IOException {
+        //make every change so far durable
+        if(log != null) {
+            log.sync();
+        }
+    }
     
-    public boolean insert(int key, long addr) throws IOException {
+    synchronized void checkpoint() throws IOException {
+        //write every block and the header to f so the log can be emptied
+        
+        pool.flush();
+        writeHeader();
+        fc.force(true);
+        
+        if(ownsLog) {
+            log.checkpoint();
+        }
+    }
+    
+    public synchronized boolean insert(int key, long addr) throws IOException {
         /*
          * If key is not a duplicate add key to the B+Tree
          * addr is the address of the row that contains the key
@@ -108,133 +357,321 @@ public class BTree {
          * return false if the key is a duplicate
          */
         
+        checkLoading();
+        
+        return insert(key, addr, new Op());
+    }
+    
+    private boolean insert(int key, long addr, Op op) throws IOException {
         BTreeNode newNode;
-        split = true;
         
         if(root == 0) {
-            root = getFree();
-            newNode = new BTreeNode(0, new int[order - 1], new long[order], root);
+            long first = getFree(0);
+            newNode = new BTreeNode(0, new int[order - 1], new long[order], first);
             newNode.keys[0] = key;
             newNode.children[0] = addr;
             newNode.count--;
-            newNode.writeNode(root);
+            newNode.writeNode(first);
+            root = first;
+            endOp();
             return true;
         }
         
-        if(search(key) != 0) {
+        descend(key, op);
+        
+        BTreeNode n = op.path.pop();
+        int i = keyIndex(n.keys, -n.count, key);
+        
+        if(i < -n.count && n.keys[i] == key) {
             return false;
         }
         
-        BTreeNode n = path.pop();
-        
-        if(-n.count < n.keys.length) {
-            simpleLeafInsert(key, addr, n);
+        if(-n.count < maxKeys) {
+            simpleLeafInsert(key, addr, n, op);
         } else {        
-            newNode = new BTreeNode(0, new int[order - 1], new long[order], getFree());
+            newNode = new BTreeNode(0, new int[order - 1], new long[order], getFree(n.currentAddr));
+            long next = n.right();
             
             splitLeafNode(n, newNode, key, addr);
             
-            loc = newNode.currentAddr;;
-            val = newNode.keys[0];
+            op.loc = newNode.currentAddr;
+            op.val = newNode.keys[0];
+            
+            //the new leaf is written before the old one links to it
+            newNode.children[order - 1] = next;
+            newNode.highKey = n.highKey;
+            newNode.writeNode(op.loc);
             
             n.children[order - 1] = newNode.currentAddr;
+            n.highKey = op.val;
             n.writeNode(n.currentAddr);
-            
-            newNode.children[order - 1] = 0;
-            newNode.writeNode(loc);
         }
-
-        while(!path.empty() && split) {
-            n = path.pop();          
+        
+        insertUp(op);
+        endOp();
+        
+        return true;
+    }
+    
+    private void insertUp(Op op) throws IOException {
+        //if op.split add op.val and the new node op.loc to the nodes left on op.path, splitting them as needed
+        
+        BTreeNode n;
+        BTreeNode newNode;
+        
+        while(!op.path.empty() && op.split) {
+            n = op.path.pop();          
             
-            if(n.count < n.keys.length) {
-                simpleNonLeafInsert(val, loc, n);
+            if(n.count < maxKeys) {
+                simpleNonLeafInsert(op.val, op.loc, n, op);
             } else {
-                newNode = new BTreeNode(0, new int[order -1], new long[order], getFree());
+                newNode = new BTreeNode(0, new int[order -1], new long[order], getFree(n.currentAddr));
                 
-                splitNode(n, newNode, val, loc);
+                splitNode(n, newNode, op.val, op.loc, op);
                 
-                n.count = -n.count;
+                newNode.writeNode(newNode.currentAddr);
                 n.writeNode(n.currentAddr);
                 
-                loc = newNode.currentAddr;
-                val = splitVal;
-                
-                newNode.count = -newNode.count;
-                
-                newNode.writeNode(loc);
+                op.loc = newNode.currentAddr;
+                op.val = op.splitVal;
             }
         }
         
-        if(split) {
+        if(op.split) {
+            //a reader that still starts at the old root moves right from it
             long oldRoot = root;
-            root = getFree();
+            long newRootAddr = getFree(oldRoot);
             
-            BTreeNode newRoot = new BTreeNode(0, new int[order - 1], new long[order], root);
+            BTreeNode newRoot = new BTreeNode(0, new int[order - 1], new long[order], newRootAddr);
             
-            newRoot.keys[0] = val;
+            newRoot.keys[0] = op.val;
             newRoot.children[0] = oldRoot;
-            newRoot.children[1] = loc;
+            newRoot.children[1] = op.loc;
             newRoot.count++;
-            newRoot.writeNode(root);
+            newRoot.writeNode(newRootAddr);
+            root = newRootAddr;
         }
-                
-        return true;
     }
     
-    private void simpleLeafInsert(int key, long addr, BTreeNode n) throws IOException {
-        int j = (-n.count) - 1;
+    public synchronized int insertBatch(int[] keys, long[] addrs) throws IOException {
+        /*
+         * Add the keys that are not in the B+Tree, addrs[i] is the address of the row with keys[i]
+         * return the number of keys added, a key that is in the tree or earlier in keys is not added
+         * 
+         * The keys are sorted and the keys that go to one leaf are added together,
+         * so the leaf, or each of the leaves it splits into, is written once.
+         */
         
-        while(j >= 0 && n.keys[j] > key) {
-            n.keys[j+1] = n.keys[j];
-            n.children[j+1] = n.children[j];
-            j--;
+        checkLoading();
+        
+        //the key in the high half so the sort is by key, then by index
+        long[] sorted = new long[keys.length];
+        
+        for(int i = 0; i < keys.length; i++) {
+            sorted[i] = (long) keys[i] << 32 | i;
+        }
+        
+        Arrays.sort(sorted);
+        
+        int[] k = new int[keys.length];
+        long[] a = new long[keys.length];
+        int m = 0;
+        
+        for(long o : sorted) {
+            int i = (int) o;
+            
+            if(m == 0 || keys[i] != k[m - 1]) {
+                k[m] = keys[i];
+                a[m] = addrs[i];
+                m++;
+            }
         }
         
-        n.keys[j+1] = key;
-        n.children[j+1] = addr;
+        long[] found = searchMany(Arrays.copyOf(k, m));
+        int n = 0;
+        
+        for(int i = 0; i < m; i++) {
+            if(found[i] == 0) {
+                k[n] = k[i];
+                a[n] = a[i];
+                n++;
+            }
+        }
+        
+        //groups are committed together until the changed blocks fill half of the pool
+        for(int i = 0; i < n; ) {
+            i = insertGroup(k, a, i, n);
+            
+            if(pool.crowded()) {
+                endOp();
+            }
+        }
+        
+        endOp();
+        
+        return n;
+    }
+    
+    synchronized int insertGroup(int[] keys, long[] addrs, int from, int to) throws IOException {
+        //PRE: keys[from] to keys[to - 1] are in ascending order and not in the tree
+        /*
+         * Add keys[from] and the keys after it that go to the same leaf, at most
+         * enough to fill GROUP_LEAVES leaves, and return the index after the last one added
+         * 
+         * A leaf that gets too many keys is split into as many leaves as it needs.
+         * The new leaves are written from right to left before the old leaf links
+         * to them, then their first keys are added to the levels above.
+         * The changes are not committed, the caller commits them.
+         */
+        
+        checkLoading();
+        
+        if(root == 0) {
+            insert(keys[from], addrs[from], new Op());
+            return from + 1;
+        }
+        
+        Op op = new Op();
+        descend(keys[from], op);
+        BTreeNode n = op.path.pop();
+        int size = -n.count;
+        int end = from;
+        
+        while(end < to && end - from < GROUP_LEAVES * maxKeys - size && (n.right() == 0 || keys[end] < n.highKey)) {
+            end++;
+        }
+        
+        //the keys of the leaf and the new keys merged in order
+        int total = size + end - from;
+        int[] k = new int[total];
+        long[] c = new long[total];
+        
+        for(int i = 0, j = from, t = 0; t < total; t++) {
+            if(j == end || (i < size && n.keys[i] < keys[j])) {
+                k[t] = n.keys[i];
+                c[t] = n.children[i];
+                i++;
+            } else {
+                k[t] = keys[j];
+                c[t] = addrs[j];
+                j++;
+            }
+        }
+        
+        int pieces = (total + maxKeys - 1) / maxKeys;
+        BTreeNode[] leaves = new BTreeNode[pieces];
+        leaves[0] = n;
+        
+        for(int p = 1; p < pieces; p++) {
+            leaves[p] = new BTreeNode(0, new int[order - 1], new long[order], getFree(leaves[p - 1].currentAddr));
+        }
+        
+        long right = n.right();
+        int high = n.highKey;
+        
+        for(int p = pieces - 1; p >= 0; p--) {
+            int s = p * total / pieces;
+            int e = (p + 1) * total / pieces;
+            BTreeNode l = leaves[p];
+            
+            Arrays.fill(l.keys, 0);
+            Arrays.fill(l.children, 0);
+            System.arraycopy(k, s, l.keys, 0, e - s);
+            System.arraycopy(c, s, l.children, 0, e - s);
+            l.count = -(e - s);
+            l.children[order - 1] = right;
+            l.highKey = high;
+            l.writeNode(l.currentAddr);
+            
+            right = l.currentAddr;
+            high = k[s];
+        }
+        
+        for(int p = 1; p < pieces; p++) {
+            //the path to the leaf before this one, its parent gets the new leaf
+            Op up = new Op();
+            up.val = leaves[p].keys[0];
+            up.loc = leaves[p].currentAddr;
+            descend(up.val, up);
+            up.path.pop();
+            insertUp(up);
+        }
+        
+        return end;
+    }
+    
+    private void checkLoading() {
+        //finish would replace the root and drop a change made during a bulk load
+        if(loading != null) {
+            throw new IllegalStateException("the tree is being bulk loaded");
+        }
+    }
+    
+    boolean crowded() {
+        //the blocks changed since the last commit fill half of the pool
+        return pool.crowded();
+    }
+    
+    private void descend(int k, Op op) throws IOException {
+        //PRE: the tree is not empty
+        //push the path to the leaf for k
+        //writers run one at a time, so the nodes on the path do not change until this writer changes them
+        
+        long addr = root;
+        
+        while(true) {
+            BTreeNode n = new BTreeNode(addr);
+            op.path.push(n);
+            
+            if(n.count <= 0) {
+                return;
+            }
+            
+            addr = n.children[childIndex(n.keys, n.count, k)];
+        }
+    }
+    
+    private void simpleLeafInsert(int key, long addr, BTreeNode n, Op op) throws IOException {
+        int size = -n.count;
+        int j = keyIndex(n.keys, size, key);
+        
+        System.arraycopy(n.keys, j, n.keys, j + 1, size - j);
+        System.arraycopy(n.children, j, n.children, j + 1, size - j);
+        
+        n.keys[j] = key;
+        n.children[j] = addr;
         n.count--;
         n.writeNode(n.currentAddr);
-        split = false;
+        op.split = false;
     }
     
-    private void simpleNonLeafInsert(int key, long addr, BTreeNode n) throws IOException {
-        int j = n.count - 1;
+    private void simpleNonLeafInsert(int key, long addr, BTreeNode n, Op op) throws IOException {
+        int size = n.count;
+        int j = keyIndex(n.keys, size, key);
         
-        while(j >= 0 && n.keys[j] > key) {
-            n.keys[j+1] = n.keys[j];
-            n.children[j+2] = n.children[j+1];
-            j--;
-        }
+        System.arraycopy(n.keys, j, n.keys, j + 1, size - j);
+        System.arraycopy(n.children, j + 1, n.children, j + 2, size - j);
         
-        n.keys[j+1] = key;
-        n.children[j+2] = addr;
+        n.keys[j] = key;
+        n.children[j + 1] = addr;
         n.count++;
         n.writeNode(n.currentAddr);
-        split = false;
+        op.split = false;
     }
     
     private void splitLeafNode(BTreeNode n1, BTreeNode n2, int key, long addr) throws IOException {
-        int[] tempKey = new int[order];
-        long[] tempChildren = new long[order + 1];
-        int n1Count = Math.abs(n1.count) - 1;
-        
-        for(int i = 0; i < n1.keys.length; i++) {
-            tempKey[i] = n1.keys[i];
-        }
+        int size = Math.abs(n1.count);
+        int[] tempKey = new int[size + 1];
+        long[] tempChildren = new long[size + 1];
+        int j = keyIndex(n1.keys, size, key);
         
-        for(int i = 0; i < n1.children.length; i++) {
-            tempChildren[i] = n1.children[i];
-        }
-        
-        while(n1Count >= 0 && tempKey[n1Count] > key) {
-            tempKey[n1Count+1] = tempKey[n1Count];
-            tempChildren[n1Count+1] = tempChildren[n1Count];
-            n1Count--;
-        }
+        System.arraycopy(n1.keys, 0, tempKey, 0, j);
+        System.arraycopy(n1.keys, j, tempKey, j + 1, size - j);
+        System.arraycopy(n1.children, 0, tempChildren, 0, j);
+        System.arraycopy(n1.children, j, tempChildren, j + 1, size - j);
         
-        tempKey[n1Count+1] = key;
-        tempChildren[n1Count+1] = addr;
+        tempKey[j] = key;
+        tempChildren[j] = addr;
         
         n1.count = 0;
         n2.count = 0;
@@ -246,7 +683,7 @@ public class BTree {
                 n1.count--;
             } else {
                 n1.children[i] = 0;
-
+                
                 
                 n2.keys[i - (tempKey.length/2)] = tempKey[i];
                 n2.children[i - (tempKey.length/2)] = tempChildren[i];
@@ -255,129 +692,449 @@ public class BTree {
         }
     }
     
-    private void splitNode(BTreeNode n1, BTreeNode n2, int key, long addr) throws IOException {
-        int[] tempKey = new int[order];
-        long[] tempChildren = new long[order + 1];
-        int n1Count = Math.abs(n1.count) - 1;
+    private void splitNode(BTreeNode n1, BTreeNode n2, int key, long addr, Op op) throws IOException {
+        //n1 keeps the keys before the middle one, the middle key moves up and n2 gets the rest
+        //n2 takes over the right link and high key of n1
+        int size = n1.count;
+        int[] tempKey = new int[size + 1];
+        long[] tempChildren = new long[size + 2];
+        int j = keyIndex(n1.keys, size, key);
+        
+        System.arraycopy(n1.keys, 0, tempKey, 0, j);
+        System.arraycopy(n1.keys, j, tempKey, j + 1, size - j);
+        System.arraycopy(n1.children, 0, tempChildren, 0, j + 1);
+        System.arraycopy(n1.children, j + 1, tempChildren, j + 2, size - j);
+        
+        tempKey[j] = key;
+        tempChildren[j + 1] = addr;
+        
+        int mid = tempKey.length/2;
+        op.splitVal = tempKey[mid];
+        
+        n2.count = tempKey.length - mid - 1;
+        System.arraycopy(tempKey, mid + 1, n2.keys, 0, n2.count);
+        System.arraycopy(tempChildren, mid + 1, n2.children, 0, n2.count + 1);
+        n2.children[order - 1] = n1.right();
+        n2.highKey = n1.highKey;
+        
+        n1.count = mid;
+        Arrays.fill(n1.children, mid + 1, order, 0);
+        System.arraycopy(tempKey, 0, n1.keys, 0, mid);
+        System.arraycopy(tempChildren, 0, n1.children, 0, mid + 1);
+        n1.children[order - 1] = n2.currentAddr;
+        n1.highKey = op.splitVal;
+    }
+    
+    public synchronized long remove(int key) throws IOException{
+        /*
+         * If the key is in the B+Tree, remove the key and return the address of the row
+         * return 0 if the key is not found in the tree
+         */
         
-        for(int i = 0; i < n1.keys.length; i++) {
-            tempKey[i] = n1.keys[i];
+        checkLoading();
+        
+        if(root == 0) {
+            return 0;
         }
         
-        for(int i = 0; i < n1.children.length; i++) {
-            tempChildren[i] = n1.children[i];
+        Op op = new Op();
+        descend(key, op);
+        
+        BTreeNode n = op.path.pop();
+        int size = -n.count;
+        int i = keyIndex(n.keys, size, key);
+        
+        if(i >= size || n.keys[i] != key) {
+            return 0;
         }
         
-        while(n1Count >= 0 && tempKey[n1Count] > key) {
-            tempKey[n1Count+1] = tempKey[n1Count];
-            tempChildren[n1Count+1] = tempChildren[n1Count];
-            n1Count--;
+        long addr = n.children[i];
+        
+        System.arraycopy(n.keys, i + 1, n.keys, i, size - i - 1);
+        System.arraycopy(n.children, i + 1, n.children, i, size - i - 1);
+        n.children[size - 1] = 0;
+        n.count++;
+        
+        if(size - 1 >= minKeys || (op.path.empty() && size > 1)) {
+            n.writeNode(n.currentAddr);
+        } else {
+            long stamp = structure.writeLock();
+            
+            try {
+                rebalance(n, true, op);
+            } finally {
+                structure.unlockWrite(stamp);
+            }
         }
         
-        tempKey[n1Count+1] = key;
-        tempChildren[n1Count+2] = addr;
-
-        splitVal = tempKey[tempKey.length/2];
+        endOp();
         
-        n1.count = 0;
-        n2.count = 0;
-        int count = 0;
+        return addr;
+    }
+    
+    private void rebalance(BTreeNode n, boolean leaf, Op op) throws IOException {
+        //PRE: the structure write lock is held, n was changed and is not written yet
+        /*
+         * Fix n and then its parent, as long as a merge leaves the parent short
+         * n borrows a key from its sibling in the same parent, or is merged with it
+         * when they fit in one node. The right node of a merge is freed.
+         * A root without keys is replaced by its only child, or by nothing.
+         */
         
-        for(int i = 0; i < tempKey.length - 1; i++) {
-            if(tempKey[i] < splitVal) {
-                n1.keys[i] = tempKey[i];
-                n1.children[i] = tempChildren[i];
-                n1.count--;
-            } else {
+        while(true) {
+            int size = Math.abs(n.count);
+            
+            if(op.path.empty()) {
+                if(size > 0) {
+                    n.writeNode(n.currentAddr);
+                } else {
+                    root = leaf ? 0 : n.children[0];
+                    addFree(n.currentAddr);
+                }
                 
-                n2.keys[count] = tempKey[i + 1];
-                n2.children[count] = tempChildren[i + 1];
-                n2.count--;
-                count++;
+                return;
+            }
+            
+            if(size >= minKeys) {
+                n.writeNode(n.currentAddr);
+                return;
+            }
+            
+            BTreeNode p = op.path.pop();
+            int ci = 0;
+            
+            while(p.children[ci] != n.currentAddr) {
+                ci++;
+            }
+            
+            BTreeNode l;
+            BTreeNode r;
+            int sep;
+            
+            if(ci < p.count) {
+                sep = ci;
+                l = n;
+                r = new BTreeNode(p.children[ci + 1]);
+            } else {
+                sep = ci - 1;
+                l = new BTreeNode(p.children[ci - 1]);
+                r = n;
+            }
+            
+            int ls = Math.abs(l.count);
+            int rs = Math.abs(r.count);
+            
+            if(ls + rs + (leaf ? 0 : 1) > maxKeys) {
+                borrow(l, r, p, sep, leaf);
+                r.writeNode(r.currentAddr);
+                l.writeNode(l.currentAddr);
+                p.writeNode(p.currentAddr);
+                return;
             }
+            
+            merge(l, r, p.keys[sep], leaf);
+            l.writeNode(l.currentAddr);
+            addFree(r.currentAddr);
+            
+            System.arraycopy(p.keys, sep + 1, p.keys, sep, p.count - sep - 1);
+            System.arraycopy(p.children, sep + 2, p.children, sep + 1, p.count - sep - 1);
+            p.children[p.count] = 0;
+            p.count--;
+            
+            n = p;
+            leaf = false;
+        }
+    }
+    
+    private void merge(BTreeNode l, BTreeNode r, int sepKey, boolean leaf) {
+        //move every key of r to the end of l, a non leaf node also takes the separator from the parent
+        int ls = Math.abs(l.count);
+        int rs = Math.abs(r.count);
+        
+        if(leaf) {
+            System.arraycopy(r.keys, 0, l.keys, ls, rs);
+            System.arraycopy(r.children, 0, l.children, ls, rs);
+            l.count = -(ls + rs);
+        } else {
+            l.keys[ls] = sepKey;
+            System.arraycopy(r.keys, 0, l.keys, ls + 1, rs);
+            System.arraycopy(r.children, 0, l.children, ls + 1, rs + 1);
+            l.count = ls + rs + 1;
         }
         
-        n2.children[count] = tempChildren[order];
+        l.children[order - 1] = r.right();
+        l.highKey = r.highKey;
     }
     
-    private long removeAddr;
+    private void borrow(BTreeNode l, BTreeNode r, BTreeNode p, int sep, boolean leaf) {
+        //move one key from the longer of l and r to the other one and update the separator in p
+        int ls = Math.abs(l.count);
+        int rs = Math.abs(r.count);
+        
+        if(leaf) {
+            if(ls < rs) {
+                l.keys[ls] = r.keys[0];
+                l.children[ls] = r.children[0];
+                System.arraycopy(r.keys, 1, r.keys, 0, rs - 1);
+                System.arraycopy(r.children, 1, r.children, 0, rs - 1);
+                r.children[rs - 1] = 0;
+                l.count--;
+                r.count++;
+            } else {
+                System.arraycopy(r.keys, 0, r.keys, 1, rs);
+                System.arraycopy(r.children, 0, r.children, 1, rs);
+                r.keys[0] = l.keys[ls - 1];
+                r.children[0] = l.children[ls - 1];
+                l.children[ls - 1] = 0;
+                l.count++;
+                r.count--;
+            }
+            
+            p.keys[sep] = r.keys[0];
+        } else {
+            if(ls < rs) {
+                l.keys[ls] = p.keys[sep];
+                l.children[ls + 1] = r.children[0];
+                p.keys[sep] = r.keys[0];
+                System.arraycopy(r.keys, 1, r.keys, 0, rs - 1);
+                System.arraycopy(r.children, 1, r.children, 0, rs);
+                r.children[rs] = 0;
+                l.count++;
+                r.count--;
+            } else {
+                System.arraycopy(r.keys, 0, r.keys, 1, rs);
+                System.arraycopy(r.children, 0, r.children, 1, rs + 1);
+                r.keys[0] = p.keys[sep];
+                r.children[0] = l.children[ls];
+                p.keys[sep] = l.keys[ls - 1];
+                l.children[ls] = 0;
+                l.count--;
+                r.count++;
+            }
+        }
+        
+        l.highKey = p.keys[sep];
+    }
     
-    public long remove(int key) throws IOException{
+    public long search(int k) throws IOException {
         /*
-         * If the key is in the B+Tree, remove the key and return the address of the row
-         * return 0 if the key is not found in the tree
+         * This is an equality search
+         * 
+         * If the key is found return the address of the row with the key 
+         * otherwise return 0 
          */
         
-        if(root == 0 || search(key) == 0) {
+        BTreeNode n = findLeaf(k);
+        
+        if(n == null) {
             return 0;
         }
         
-        BTreeNode n = path.pop();
+        int i = keyIndex(n.keys, -n.count, k);
         
-        if(-n.count - 1 > (order/2) - 1) {
-            simpleRemove(key, n);
-        } else {
-            System.out.println("must borow or combine");
+        if(i < -n.count && n.keys[i] == k) {
+            return n.children[i];
         }
         
-        return 1;
+        return 0;
     }
     
-    private void simpleRemove(int key, BTreeNode n) {
+    public long[] searchMany(int[] keys) throws IOException {
         /*
-         * set the key value to 0, and set removeAddr to the corresponding child value
-         * reorganize the keys and children so there are no 0's inbetween
+         * Equality searches of many keys
+         * return an array with the address of the row with keys[i] at i, or 0 if keys[i] is not found
+         * 
+         * The keys are sorted and found in one descent of the tree, a node on the
+         * path to more than one of them is read once for all of them.
          */
         
-        for(int i = 0; i < -n.count; i++) {
-            if(i < key) {
-                n.keys[i] = 0;
-                removeAddr = n.children[i];
-                n.children[i] = 0;
+        int[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        int m = 0;
+        
+        for(int i = 0; i < sorted.length; i++) {
+            if(m == 0 || sorted[i] != sorted[m - 1]) {
+                sorted[m++] = sorted[i];
             }
         }
         
-        for(int i = 0; i < -n.count; i++) {
-            n.keys[i] = n.keys[i];
+        long[] found = new long[m];
+        boolean done = false;
+        
+        for(int i = 0; i < OPTIMISTIC_TRIES && !done; i++) {
+            long stamp = structure.tryOptimisticRead();
+            long addr = root;
+            
+            if(addr == 0) {
+                done = structure.validate(stamp);
+            } else {
+                done = searchMany(addr, sorted, 0, m, found, stamp);
+            }
+        }
+        
+        if(!done) {
+            long stamp = structure.readLock();
+            
+            try {
+                if(root != 0) {
+                    searchMany(root, sorted, 0, m, found, stamp);
+                }
+            } finally {
+                structure.unlockRead(stamp);
+            }
+        }
+        
+        long[] addrs = new long[keys.length];
+        
+        for(int i = 0; i < keys.length; i++) {
+            addrs[i] = found[Arrays.binarySearch(sorted, 0, m, keys[i])];
         }
+        
+        return addrs;
     }
     
-    public long search(int k) throws IOException {
+    private boolean searchMany(long addr, int[] k, int from, int to, long[] found, long stamp) throws IOException {
         /*
-         * This is an equality search
+         * Find the keys k[from] to k[to - 1] under the node at addr and put their addresses in found
+         * return false if structure changed since stamp
          * 
-         * If the key is found return the address of the row with the key 
-         * otherwise return 0 
+         * The keys at or past the high key of a node are in the nodes to the right of it.
          */
         
-        path = new Stack<>();
-
-        return search(k, root);        
+        while(from < to) {
+            BTreeNode n = readNode(addr);
+            
+            if(!structure.validate(stamp)) {
+                return false;
+            }
+            
+            int here = n.right() == 0 ? to : Math.max(from, keyIndex(k, to, n.highKey));
+            
+            if(n.count <= 0) {
+                for(int j = from; j < here; j++) {
+                    int i = keyIndex(n.keys, -n.count, k[j]);
+                    found[j] = i < -n.count && n.keys[i] == k[j] ? n.children[i] : 0;
+                }
+            } else {
+                //the keys for one child are next to each other, they are found together
+                int j = from;
+                
+                while(j < here) {
+                    int c = childIndex(n.keys, n.count, k[j]);
+                    int e = c == n.count ? here : Math.min(here, keyIndex(k, here, n.keys[c]));
+                    
+                    if(!searchMany(n.children[c], k, j, e, found, stamp)) {
+                        return false;
+                    }
+                    
+                    j = e;
+                }
+            }
+            
+            from = here;
+            addr = n.right();
+        }
+        
+        return true;
     }
     
-    private long search(int k, long addr) throws IOException {
-        BTreeNode n = new BTreeNode(addr);
-        path.push(n);
-        int i;
+    private BTreeNode findLeaf(int k) throws IOException {
+        //return a copy of the leaf for k, or null if the tree is empty
+        //a reader that keeps running into merges stops retrying and holds them off
         
-        if(n.count <= 0) {
-            for(i = 0; i < -n.count; i++) {
-                if(k == n.keys[i]) {
-                    return n.children[i];
-                }
+        for(int i = 0; i < OPTIMISTIC_TRIES; i++) {
+            long stamp = structure.tryOptimisticRead();
+            long addr = root;
+            
+            if(addr == 0 && structure.validate(stamp)) {
+                return null;
             }
             
-            return 0;
+            BTreeNode n = leafFrom(addr, k, stamp);
+            
+            if(n != null) {
+                return n;
+            }
+            
+            Thread.onSpinWait();
         }
         
-        for(i = 0; i < n.count; i++) {
-            if(k < n.keys[i]) {
-                //path.push(n);
-                break;
+        long stamp = structure.readLock();
+        
+        try {
+            return root == 0 ? null : leafFrom(root, k, stamp);
+        } finally {
+            structure.unlockRead(stamp);
+        }
+    }
+    
+    private BTreeNode leafFrom(long addr, int k, long stamp) throws IOException {
+        /*
+         * Return a copy of the leaf for k, or null if structure changed since stamp
+         * 
+         * No latch is held while moving from a node to the next one. If a node split
+         * after the reader took the pointer to it, k is at or past its high key and
+         * the reader follows the right link.
+         */
+        
+        while(addr != 0) {
+            BTreeNode n = readNode(addr);
+            
+            if(!structure.validate(stamp)) {
+                return null;
+            }
+            
+            if(n.movesRight(k)) {
+                addr = n.right();
+            } else if(n.count <= 0) {
+                return n;
+            } else {
+                addr = n.children[childIndex(n.keys, n.count, k)];
             }
         }
         
-        return search(k, n.children[i]);
+        return null;
+    }
+    
+    private BTreeNode readNode(long addr) throws IOException {
+        //a copy of the node at addr that is consistent with itself
+        //a node in the pool is decoded without locking, see BufferPool.read
+        return pool.read(addr, b -> new BTreeNode(b, addr));
+    }
+    
+    static int keyIndex(int[] keys, int size, int k) {
+        //binary search of the first size keys
+        //return the index of the first key that is >= k, or size if there is none
+        //the last few keys are scanned, that is faster than branching on each of them
+        int low = 0;
+        int high = size;
+        
+        while(high - low > LINEAR_KEYS) {
+            int mid = (low + high) >>> 1;
+            
+            if(keys[mid] < k) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        
+        while(low < high && keys[low] < k) {
+            low++;
+        }
+        
+        return low;
+    }
+    
+    static int childIndex(int[] keys, int size, int k) {
+        //the child of a non leaf node to follow for k is after every key that is <= k
+        int i = keyIndex(keys, size, k);
+        
+        if(i < size && keys[i] == k) {
+            i++;
+        }
+        
+        return i;
     }
     
     public LinkedList<Long> search(int low, int high) throws IOException {
@@ -390,25 +1147,332 @@ public class BTree {
          */
         
         LinkedList<Long> list = new LinkedList<>();
-        search(low);
-        BTreeNode n = path.pop();
-        long addr = n.currentAddr;
+        RangeCursor c = range(low, high);
         
-        while(addr != 0) {
-            for(int i = 0; i < -n.count; i++) {
-                if(low <= n.keys[i] && n.keys[i] <= high) {
-                    list.add(n.children[i]);
+        while(c.next()) {
+            list.add(c.addr());
+        }
+        
+        return list;
+    }
+    
+    public AddressList searchAddrs(int low, int high) throws IOException {
+        //PRE: low <= high
+        //the same range search as search(low, high) with the addresses kept in a long[]
+        
+        AddressList list = new AddressList();
+        RangeCursor c = range(low, high);
+        
+        while(c.next()) {
+            list.add(c.addr());
+        }
+        
+        return list;
+    }
+    
+    public void setExecutor(Executor e) {
+        //the async methods run on e, or on the shared IOScheduler threads if e is null
+        executor = e;
+    }
+    
+    private Executor executor() {
+        Executor e = executor;
+        return e == null ? IOScheduler.shared() : e;
+    }
+    
+    public CompletableFuture<Long> searchAsync(int k) {
+        //search(k) on another thread, searches that run at once overlap their reads
+        return IOScheduler.submit(executor(), () -> search(k));
+    }
+    
+    public CompletableFuture<LinkedList<Long>> searchAsync(int low, int high) {
+        return IOScheduler.submit(executor(), () -> search(low, high));
+    }
+    
+    public CompletableFuture<Boolean> insertAsync(int key, long addr) {
+        //inserts still run one at a time, the caller does not wait for its turn
+        return IOScheduler.submit(executor(), () -> insert(key, addr));
+    }
+    
+    public CompletableFuture<Long> removeAsync(int key) {
+        return IOScheduler.submit(executor(), () -> remove(key));
+    }
+    
+    public RangeCursor range(int low, int high) throws IOException {
+        /*
+         * This is a range search that returns the row addresses one at a time
+         * 
+         * The cursor starts at the first key >= low and stops at the first key > high,
+         * so only the leaves that hold keys in the range are read
+         */
+        
+        return new RangeCursor(low, high);
+    }
+    
+    public class RangeCursor {
+        /*
+         * Only a copy of the current leaf is kept in memory, so an open cursor
+         * does not hold a latch. A key inserted by another thread while the
+         * cursor is open is returned only if it is in a leaf the cursor has not
+         * copied yet.
+         */
+        
+        private BTreeNode leaf;
+        private int i;
+        private int high;
+        private int key;
+        private long addr;
+        private long from;//the smallest key that has not been returned
+        private long stamp;//structure when leaf was copied
+        
+        private RangeCursor(int low, int high) throws IOException {
+            this.high = high;
+            from = low;
+            seek();
+        }
+        
+        private void seek() throws IOException {
+            //find the leaf for from again, merges wait until it is copied
+            
+            long s = structure.readLock();
+            
+            try {
+                leaf = root == 0 || from > Integer.MAX_VALUE ? null : leafFrom(root, (int) from, s);
+                
+                if(leaf != null) {
+                    i = keyIndex(leaf.keys, -leaf.count, (int) from);
                 }
+            } finally {
+                stamp = structure.tryConvertToOptimisticRead(s);
             }
-            addr = n.children[order - 1];
-            n = new BTreeNode(addr);
         }
         
-        return list;
+        public boolean next() throws IOException {
+            //move to the next key in the range
+            //return false when there are no more keys in the range
+            
+            while(leaf != null && i >= -leaf.count) {
+                long next = leaf.right();
+                BTreeNode n = next == 0 ? null : readNode(next);
+                
+                if(!structure.validate(stamp)) {
+                    //a merge may have freed the next leaf
+                    seek();
+                } else {
+                    leaf = n;
+                    i = 0;
+                }
+            }
+            
+            if(leaf == null || leaf.keys[i] > high) {
+                leaf = null;
+                return false;
+            }
+            
+            key = leaf.keys[i];
+            addr = leaf.children[i];
+            from = (long) key + 1;
+            i++;
+            
+            return true;
+        }
+        
+        public int key() {
+            return key;
+        }
+        
+        public long addr() {
+            //the address of the row with the current key
+            return addr;
+        }
     }
     
-    public void print() throws IOException {
-
+    public synchronized BulkLoader bulkLoader(double fill) throws IOException {
+        /*
+         * Build the tree bottom up from keys that are added in ascending order
+         * fill is the fraction of each node that is used, for example 0.9 leaves
+         * room in every node for later inserts without splitting
+         * 
+         * The tree must be empty, and the tree cannot be changed in any
+         * other way until finish is called
+         */
+        
+        checkLoading();
+        
+        if(root != 0) {
+            throw new IllegalStateException("bulk load needs an empty tree");
+        }
+        
+        loading = new BulkLoader(fill);
+        
+        return loading;
+    }
+    
+    public class BulkLoader {
+        /*
+         * Leaves are written one after the other as they fill up. The first key
+         * and address of every node on a level is kept so the level above can be
+         * built from it in finish.
+         * 
+         * Readers see an empty tree until finish sets the root.
+         */
+        
+        private int leafCap;
+        private int fanout;
+        private BTreeNode leaf;
+        private int[] firstKeys = new int[16];
+        private long[] addrs = new long[16];
+        private int size;
+        private boolean first = true;
+        private int last;
+        private boolean written;//a leaf was logged that the table has not committed
+        private boolean building;//finish is building the levels above the leaves
+        
+        private BulkLoader(double fill) {
+            leafCap = Math.max(1, Math.min(maxKeys, (int) (fill * maxKeys)));
+            fanout = Math.max(2, Math.min(maxKeys + 1, (int) (fill * (maxKeys + 1))));
+        }
+        
+        public boolean add(int key, long addr) throws IOException {
+            //return false and do not add the key if it is not greater than the last key added
+            synchronized(BTree.this) {
+                return addKey(key, addr);
+            }
+        }
+        
+        private boolean addKey(int key, long addr) throws IOException {
+            if(!first && key <= last) {
+                return false;
+            }
+            
+            if(leaf == null || -leaf.count == leafCap) {
+                long next = getFree(leaf == null ? 0 : leaf.currentAddr);
+                
+                if(leaf != null) {
+                    leaf.children[order - 1] = next;
+                    leaf.highKey = key;
+                    leaf.writeNode(leaf.currentAddr);
+                    logged();
+                }
+                
+                leaf = new BTreeNode(0, new int[order - 1], new long[order], next);
+                level(key, next);
+            }
+            
+            leaf.keys[-leaf.count] = key;
+            leaf.children[-leaf.count] = addr;
+            leaf.count--;
+            
+            first = false;
+            last = key;
+            
+            return true;
+        }
+        
+        private void logged() throws IOException {
+            //a bulk load writes more blocks than the pool holds, so the blocks
+            //are committed as they are written instead of once at the end
+            //in a table the leaves are committed by the table with their rows,
+            //the levels above are built after the table committed every row
+            if(ownsLog) {
+                endOp();
+            } else if(building) {
+                logChanges();
+                committed(log.commit());
+            } else {
+                logChanges();
+                written = true;
+            }
+        }
+        
+        boolean written() {
+            //a leaf was logged since the last call, the table commits it with the rows of its keys
+            boolean w = written;
+            written = false;
+            return w;
+        }
+        
+        private void level(int key, long addr) {
+            //the first key and address of the next node on the level being built
+            if(size == addrs.length) {
+                firstKeys = Arrays.copyOf(firstKeys, 2 * size);
+                addrs = Arrays.copyOf(addrs, 2 * size);
+            }
+            
+            firstKeys[size] = key;
+            addrs[size] = addr;
+            size++;
+        }
+        
+        public void finish() throws IOException {
+            //write the last leaf and build the non leaf levels
+            synchronized(BTree.this) {
+                build();
+                loading = null;
+            }
+        }
+        
+        private void build() throws IOException {
+            if(leaf == null) {
+                return;
+            }
+            
+            building = true;
+            leaf.writeNode(leaf.currentAddr);
+            
+            while(size > 1) {
+                int children = size;
+                int[] levelKeys = firstKeys;
+                long[] levelAddrs = addrs;
+                
+                //every node gets at least 2 children and the children are spread evenly
+                int nodes = Math.min((children + fanout - 1) / fanout, children / 2);
+                
+                firstKeys = new int[nodes];
+                addrs = new long[nodes];
+                size = 0;
+                
+                //the nodes of a level are allocated first so each one can link to the next
+                long[] nodeAddrs = new long[nodes];
+                
+                for(int i = 0; i < nodes; i++) {
+                    nodeAddrs[i] = getFree(i == 0 ? levelAddrs[children - 1] : nodeAddrs[i - 1]);
+                }
+                
+                int c = 0;
+                
+                for(int i = 0; i < nodes; i++) {
+                    int count = children / nodes + (i < children % nodes ? 1 : 0);
+                    BTreeNode n = new BTreeNode(0, new int[order - 1], new long[order], nodeAddrs[i]);
+                    
+                    if(i + 1 < nodes) {
+                        n.children[order - 1] = nodeAddrs[i + 1];
+                        n.highKey = levelKeys[c + count];
+                    }
+                    
+                    n.children[0] = levelAddrs[c];
+                    level(levelKeys[c], n.currentAddr);
+                    
+                    for(int j = 1; j < count; j++) {
+                        n.keys[j - 1] = levelKeys[c + j];
+                        n.children[j] = levelAddrs[c + j];
+                    }
+                    
+                    n.count = count - 1;
+                    n.writeNode(n.currentAddr);
+                    logged();
+                    c += count;
+                }
+            }
+            
+            root = addrs[0];
+            leaf = null;
+            logged();
+        }
+    }
+    
+    public synchronized void print() throws IOException {
+        
         //print the B+Tree to standard output
         //print one node per line
         
@@ -423,13 +1487,13 @@ public class BTree {
         if(n.count < 0) {
             s = "";      
             s += "Count:"+n.count+" Keys:";
-        
+            
             for(int i = 0; i < Math.abs(n.count); i++) {
                 s += n.keys[i]+" ";
             }
-        
+            
             s += "Children:";
-        
+            
             for(int i = 0; i < n.children.length; i++) {  
                 s += n.children[i]+" ";
                 
@@ -440,7 +1504,7 @@ public class BTree {
             
             return s;
         }
-             
+        
         s += "Count:"+n.count+" Keys:";
         
         for(int i = 0; i < n.count; i++) {
@@ -459,43 +1523,71 @@ public class BTree {
         
         return s;
     }
-   
-    public void close() throws IOException {
+    
+    public synchronized void close() throws IOException {
         //close the B+Tree. The tree should not be accessed after close is called
         
-        f.seek(0);
-        f.writeLong(root);
-        f.writeLong(free);
-        f.writeInt(blockSize);
+        if(log != null) {
+            checkpoint();
+            
+            if(ownsLog) {
+                log.close();
+            }
+        } else {
+            pool.flush();
+            writeHeader();
+        }
+        
+        if(mapped) {
+            //the last chunk is mapped past the last block, give the unused space back
+            f.setLength(end);
+        }
+        
         f.close();
+        map.save(mapFile);
     }
     
-    private long getFree() throws IOException {
-        if(free == 0) {
-            return f.length();
-        } else {
-            f.seek(free);
-            long addr = free;
-            f.seek(addr);
-            free = f.readLong();
-            return addr;
-        }
+    private void writeHeader() throws IOException {
+        BufferPool.writeFully(fc, header(), 0);
     }
     
-    private void addFree(long newFree, BTreeNode temp) throws IOException {
-        long addr = free;
-        long tempAddr = 0;
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
         
-        while(addr != 0) {
-            f.seek(addr);
-            tempAddr = addr;
-            addr = f.readLong();
+        header.putLong(root);
+        header.putInt(MAGIC);//was the head of a free list, free blocks are kept in map
+        header.putInt(FORMAT_VERSION);
+        header.putInt(blockSize);
+        header.flip();
+        
+        return header;
+    }
+    
+    private long getFree(long near) throws IOException {
+        //a free block, the closest one after the block at near if there is one
+        //near is the sibling or parent of the new node, so nodes made together stay together
+        
+        long addr = block(map.allocate(near == 0 ? 0 : slot(near)));
+        
+        if(addr >= end) {
+            end = addr + blockSize;
+            pool.grow(end);
         }
         
-        f.seek(tempAddr);
-        f.writeLong(newFree);
-        f.seek(newFree);
-        f.writeLong(0);
+        return addr;
+    }
+    
+    private void addFree(long addr) {
+        //the block at addr is not written, it is free as soon as map says so
+        map.release(slot(addr));
+    }
+    
+    private int slot(long addr) {
+        return (int) ((addr - HEADER_SIZE) / blockSize);
+    }
+    
+    private long block(int slot) {
+        return HEADER_SIZE + (long) slot * blockSize;
     }
     
     public static void main(String[] args) throws IOException {
@@ -0,0 +1,521 @@
+//Jackson Lee
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+class BufferPool {
+    /*
+     * Holds a fixed number of blockSize frames between the nodes of a tree and
+     * its file f. Used by BTree and ByteKeyTree.
+     *
+     * A frame stays in memory until the CLOCK hand finds it unpinned and
+     * not recently referenced. Dirty frames are written back when they are
+     * evicted or when the pool is flushed.
+     *
+     * In mapped mode there are no frames. The blocks after the file's header are
+     * mapped in chunks of whole blocks and pin returns a view of the
+     * mapping, so a node is decoded without a read call or a copy.
+     *
+     * When there is a log, a frame changed by the current operation is not
+     * evicted until its new contents are logged and the commit record after
+     * them is written, and the log is synced up to that commit before a changed
+     * frame is written to f. The log is only redone, so a block that reached f
+     * before its commit was durable could not be undone after a crash. An
+     * operation that changes more blocks than the pool has frames makes the
+     * pool bigger.
+     *
+     * The pool is shared by every thread. pin, unpin and eviction are
+     * synchronized, and pin gives each caller its own view of the frame.
+     * read does not lock: every frame has a StampedLock that works as the
+     * version of the block in it. Writing a block through pinWrite, reading
+     * a block into the frame and evicting it hold the write lock, so a reader
+     * that decoded the frame while it changed sees the stamp move and tries
+     * again. The block to frame table is an array that read uses without
+     * locking, a stale entry is caught by checking the address of the frame.
+     */
+    
+    private static class Frame {
+        private final ByteBuffer buf;//only read with absolute gets, its position and limit never change
+        private final StampedLock lock = new StampedLock();
+        private volatile long addr;//0 if the frame is empty
+        private volatile boolean referenced;
+        private int pins;
+        private boolean dirty;
+        private boolean unlogged;
+        private boolean uncommitted;//logged, but the commit after it is not written yet
+        private boolean loading;//the block is being read into the frame
+        private long logEnd;//where the commit of the last logged contents of the frame ends in the log
+        
+        private Frame(int blockSize) {
+            buf = ByteBuffer.allocateDirect(blockSize);
+        }
+    }
+    
+    interface Reader<T> {
+        //decode the block that starts at index 0 of b with absolute gets
+        //b can change while it is decoded, the result is only used if it did not
+        //a decode that throws because b changed is tried again
+        T read(ByteBuffer b);
+    }
+    
+    private FileChannel fc;
+    private int blockSize;
+    private long start;//where the first block starts, after the header of f
+    private WriteAheadLog log;//null if the blocks are not logged
+    private int logFile;//the number of f in the log
+    private volatile Frame[] frames;
+    private volatile int[] table;//table[i] is 1 + the frame that holds block i, 0 if it is not in the pool
+    private ArrayList<Frame> changed;
+    private ArrayList<Frame> logged;//frames logged since the last commit
+    private int hand;
+    private volatile MappedByteBuffer[] chunks;
+    private StampedLock[] stripes;//the versions of the blocks in mapped mode, block i uses stripe i % STRIPES
+    private int chunkSize;
+    
+    static final int MAP_CHUNK = 1 << 20;
+    static final int STRIPES = 256;
+    static final int OPTIMISTIC_TRIES = 4;//optimistic reads of a block before read takes its read lock
+    
+    BufferPool(FileChannel fc, int blockSize, long start, int numFrames) {
+        this.fc = fc;
+        this.blockSize = blockSize;
+        this.start = start;
+        frames = new Frame[numFrames];
+        table = new int[0];
+        changed = new ArrayList<>();
+        logged = new ArrayList<>();
+        hand = 0;
+        
+        for(int i = 0; i < numFrames; i++) {
+            frames[i] = new Frame(blockSize);
+        }
+    }
+    
+    BufferPool(FileChannel fc, int blockSize, long start, long end) throws IOException {
+        //a mapped pool for the blocks before end
+        this(fc, blockSize, start, 0);
+        chunks = new MappedByteBuffer[0];
+        chunkSize = Math.max(1, MAP_CHUNK / blockSize) * blockSize;
+        stripes = new StampedLock[STRIPES];
+        
+        for(int i = 0; i < STRIPES; i++) {
+            stripes[i] = new StampedLock();
+        }
+        
+        grow(end);
+    }
+    
+    synchronized void useLog(WriteAheadLog wal, int walFile) {
+        //changed frames are logged to wal as file walFile
+        log = wal;
+        logFile = walFile;
+    }
+    
+    synchronized void grow(long end) throws IOException {
+        //map more chunks until every block before end is covered
+        if(chunks == null) {
+            return;
+        }
+        
+        MappedByteBuffer[] c = chunks;
+        int n = c.length;
+        
+        while(start + (long) n * chunkSize < end) {
+            n++;
+        }
+        
+        if(n > c.length) {
+            c = Arrays.copyOf(c, n);
+            
+            for(int i = chunks.length; i < n; i++) {
+                c[i] = fc.map(FileChannel.MapMode.READ_WRITE, start + (long) i * chunkSize, chunkSize);
+            }
+            
+            chunks = c;
+        }
+    }
+    
+    <T> T read(long addr, Reader<T> r) throws IOException {
+        //decode the block at addr with r and return what r returns for a version of the block that did not change
+        //a block in the pool is read without locking, r may run more than once
+        
+        if(chunks != null) {
+            StampedLock l = stripes[block(addr) % STRIPES];
+            
+            for(int i = 0; i < OPTIMISTIC_TRIES; i++) {
+                long s = l.tryOptimisticRead();
+                
+                if(s != 0) {
+                    T t = tryRead(r, mapped(addr), l, s);
+                    
+                    if(l.validate(s)) {
+                        return t;
+                    }
+                }
+                
+                Thread.onSpinWait();
+            }
+            
+            long s = l.readLock();
+            
+            try {
+                return r.read(mapped(addr));
+            } finally {
+                l.unlockRead(s);
+            }
+        }
+        
+        for(int i = 0; i < OPTIMISTIC_TRIES; i++) {
+            Frame fr = lookup(addr);
+            
+            if(fr == null) {
+                break;
+            }
+            
+            long s = fr.lock.tryOptimisticRead();
+            
+            if(s != 0 && fr.addr == addr) {
+                T t = tryRead(r, fr.buf, fr.lock, s);
+                
+                if(fr.lock.validate(s)) {
+                    fr.referenced = true;
+                    return t;
+                }
+            }
+            
+            Thread.onSpinWait();
+        }
+        
+        //the block is not in the pool, or it keeps changing, so wait for it
+        pin(addr);
+        Frame fr = lookup(addr);
+        long s = fr.lock.readLock();
+        
+        try {
+            return r.read(fr.buf);
+        } finally {
+            fr.lock.unlockRead(s);
+            unpin(addr, false);
+        }
+    }
+    
+    private static <T> T tryRead(Reader<T> r, ByteBuffer b, StampedLock l, long s) {
+        //r's result, or null if r failed on a block that changed after the stamp s
+        try {
+            return r.read(b);
+        } catch(RuntimeException e) {
+            if(l.validate(s)) {
+                throw e;
+            }
+            
+            return null;
+        }
+    }
+    
+    private Frame lookup(long addr) {
+        //the frame that holds the block at addr, or null, without locking
+        //the frame may be evicted at any time, its lock and address tell the caller
+        
+        int[] t = table;
+        int i = block(addr);
+        int slot = i < t.length ? t[i] - 1 : -1;
+        Frame[] fs = frames;
+        
+        return slot >= 0 && slot < fs.length ? fs[slot] : null;
+    }
+    
+    private ByteBuffer mapped(long addr) {
+        long offset = addr - start;
+        return chunks[(int) (offset / chunkSize)].slice((int) (offset % chunkSize), blockSize);
+    }
+    
+    ByteBuffer pin(long addr) throws IOException {
+        //return the frame that holds the block at addr, reading it if it is not in the pool
+        //the frame is returned positioned at the start of the block
+        //the read is done without holding the pool, only threads that pin the same block wait for it
+        
+        if(chunks != null) {
+            return mapped(addr);
+        }
+        
+        Frame fr;
+        
+        synchronized(this) {
+            fr = lookup(addr);
+            
+            while(fr != null && fr.loading) {
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                
+                fr = lookup(addr);
+            }
+            
+            if(fr != null) {
+                fr.pins++;
+                fr.referenced = true;
+                return view(fr);
+            }
+            
+            //victim returns the frame write locked, readers wait until it is read
+            int slot = victim();
+            fr = frames[slot];
+            fr.addr = addr;
+            fr.pins++;
+            fr.referenced = true;
+            fr.dirty = false;
+            fr.loading = true;
+            setSlot(block(addr), slot + 1);
+        }
+        
+        boolean read = false;
+        
+        try {
+            readFrame(fr);
+            read = true;
+        } finally {
+            loaded(fr, read);
+        }
+        
+        return view(fr);
+    }
+    
+    ByteBuffer pinWrite(long addr) throws IOException {
+        //pin the block at addr to change it, readers of the block try again until unpinWrite
+        
+        if(chunks != null) {
+            stripes[block(addr) % STRIPES].writeLock();
+            return mapped(addr);
+        }
+        
+        ByteBuffer b = pin(addr);
+        lookup(addr).lock.writeLock();
+        
+        return b;
+    }
+    
+    void unpinWrite(long addr) {
+        //PRE: the block at addr was pinned by pinWrite
+        
+        if(chunks != null) {
+            stripes[block(addr) % STRIPES].tryUnlockWrite();
+            return;
+        }
+        
+        lookup(addr).lock.tryUnlockWrite();
+        unpin(addr, true);
+    }
+    
+    private synchronized void loaded(Frame fr, boolean read) {
+        //the frame can be used by other threads, or given back if it could not be read
+        fr.loading = false;
+        
+        if(!read) {
+            setSlot(block(fr.addr), 0);
+            fr.addr = 0;
+            fr.pins--;
+        }
+        
+        fr.lock.tryUnlockWrite();
+        notifyAll();
+    }
+    
+    private ByteBuffer view(Frame fr) {
+        //each caller gets its own position in the frame
+        return fr.buf.duplicate().clear();
+    }
+    
+    synchronized void unpin(long addr, boolean modified) {
+        if(chunks != null) {
+            return;
+        }
+        
+        Frame fr = lookup(addr);
+        
+        fr.pins--;
+        
+        if(modified) {
+            fr.dirty = true;
+            
+            if(log != null && !fr.unlogged) {
+                fr.unlogged = true;
+                changed.add(fr);
+            }
+        }
+    }
+    
+    synchronized boolean crowded() {
+        //half of the frames hold changes that are not committed yet, the owner should commit them before it changes more
+        return 2 * (changed.size() + logged.size()) >= frames.length;
+    }
+    
+    synchronized void logChanges() {
+        //log the contents of every frame changed since the last call
+        //the frames are kept in memory until committed is called
+        for(Frame fr : changed) {
+            log.write(logFile, fr.addr, view(fr));
+            fr.unlogged = false;
+            
+            if(!fr.uncommitted) {
+                fr.uncommitted = true;
+                logged.add(fr);
+            }
+        }
+        
+        changed.clear();
+    }
+    
+    synchronized void committed(long end) {
+        //the commit record of the frames logged so far ends at end in the log, so they can be evicted
+        //once the log is synced to end
+        for(Frame fr : logged) {
+            fr.logEnd = end;
+            fr.uncommitted = false;
+        }
+        
+        logged.clear();
+    }
+    
+    private int victim() throws IOException {
+        //CLOCK: skip pinned frames and give referenced frames a second chance
+        //the frame is returned empty and write locked
+        
+        Frame[] fs = frames;
+        
+        for(int i = 0; i < 2 * fs.length + 1; i++) {
+            int slot = hand;
+            Frame fr = fs[slot];
+            hand = (hand + 1) % fs.length;
+            
+            if(fr.addr != 0 && (fr.pins > 0 || fr.unlogged || fr.uncommitted)) {
+                continue;
+            }
+            
+            if(fr.addr != 0 && fr.referenced) {
+                fr.referenced = false;
+                continue;
+            }
+            
+            //an unpinned frame is not locked, readers only lock a frame they pinned
+            if(fr.lock.tryWriteLock() == 0) {
+                continue;
+            }
+            
+            if(fr.addr == 0) {
+                return slot;
+            }
+            
+            if(fr.dirty) {
+                if(log != null) {
+                    log.syncTo(fr.logEnd);
+                }
+                
+                writeFrame(fr);
+            }
+            
+            setSlot(block(fr.addr), 0);
+            fr.addr = 0;
+            return slot;
+        }
+        
+        //the changes of an unlogged or uncommitted frame are not committed, writing them to f could not be undone
+        //after a crash, so the frame stays in memory and the pool gets one more frame
+        return addFrame();
+    }
+    
+    private int addFrame() {
+        //a new empty frame after the others, write locked
+        int slot = frames.length;
+        Frame fr = new Frame(blockSize);
+        
+        fr.lock.writeLock();
+        
+        Frame[] fs = Arrays.copyOf(frames, slot + 1);
+        fs[slot] = fr;
+        frames = fs;
+        hand = 0;
+        
+        return slot;
+    }
+    
+    private void setSlot(int block, int value) {
+        //PRE: the pool is locked
+        //the table grows to cover block, read sees the old or the new table
+        
+        int[] t = table;
+        
+        if(block >= t.length) {
+            if(value == 0) {
+                return;
+            }
+            
+            t = Arrays.copyOf(t, Math.max(block + 1, 2 * t.length));
+        }
+        
+        t[block] = value;
+        table = t;
+    }
+    
+    private int block(long addr) {
+        return (int) ((addr - start) / blockSize);
+    }
+    
+    private void readFrame(Frame fr) throws IOException {
+        //one positional read for the whole block, anything past the end of f reads as 0
+        ByteBuffer frame = view(fr);
+        
+        readFully(fc, frame, fr.addr);
+        
+        while(frame.hasRemaining()) {
+            frame.put((byte) 0);
+        }
+    }
+    
+    private void writeFrame(Frame fr) throws IOException {
+        writeFully(fc, view(fr), fr.addr);
+        fr.dirty = false;
+    }
+    
+    synchronized void flush() throws IOException {
+        if(chunks != null) {
+            for(MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            return;
+        }
+        
+        if(log != null) {
+            log.sync();
+        }
+        
+        for(Frame fr : frames) {
+            if(fr.addr != 0 && fr.dirty) {
+                writeFrame(fr);
+            }
+        }
+    }
+    
+    static void readFully(FileChannel fc, ByteBuffer b, long addr) throws IOException {
+        //positional read from fc starting at addr, stops early at the end of the file
+        long start = addr - b.position();
+        
+        while(b.hasRemaining()) {
+            if(fc.read(b, start + b.position()) < 0) {
+                return;
+            }
+        }
+    }
+    
+    static void writeFully(FileChannel fc, ByteBuffer b, long addr) throws IOException {
+        long start = addr - b.position();
+        
+        while(b.hasRemaining()) {
+            fc.write(b, start + b.position());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,1249 @@
+//Jackson Lee
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+public class ByteKeyTree {
+    /*
+     * A B+Tree with variable length byte[] keys, compared as unsigned bytes
+     * Like BTree, each key maps to the address of a row
+     *
+     * Nodes are slotted pages. The keys of a node share a prefix that is stored
+     * once, and each entry only stores the rest of its key. A search compares the
+     * prefix once per node and then binary searches the slots in the page, so the
+     * other entries of the node are not decoded.
+     *
+     * The separators in non leaf nodes are cut to the shortest bytes that still
+     * separate the two leaves, so wide keys take little room above the leaves
+     * and a block holds more children.
+     *
+     * Keys of other types are encoded by Keys so their order is the order of
+     * the bytes. Keys with an order of their own, like fixed length keys of a
+     * format the tree does not know, can be given a comparator instead. Such a
+     * tree decodes the keys it compares and does not cut its separators.
+     *
+     * Changes are synchronized, one runs at a time. Searches and cursors do
+     * not lock the tree, they search each node in its frame, see BufferPool.read.
+     * A change that writes one node is seen whole or not at all. A split, a
+     * borrow, a merge or a new root writes several nodes, so it holds the
+     * write lock of structure, and a reader checks structure after every node
+     * and starts again if one of them ran.
+     */
+    
+    RandomAccessFile f;
+    FileChannel fc;
+    int blockSize;
+    volatile long root;
+    FreeMap map;//the blocks in use, block i starts at HEADER_SIZE + i * blockSize
+    String mapFile;//where map is saved when the tree is closed
+    long end;//logical end of the file, blocks that only exist in the pool are counted
+    BufferPool pool;
+    WriteAheadLog log;
+    boolean ownsLog;//false when the log is shared with a DBTable that commits
+    int logFile;//the number of f in the log
+    volatile long changes;//counts the node writes, a Cursor whose leaf copy is older finds its place again
+    Comparator<byte[]> order;//null when keys are compared as unsigned bytes
+    private StampedLock structure = new StampedLock();
+    
+    static final int POOL_FRAMES = 64;
+    static final int HEADER_SIZE = 20;
+    static final int MAGIC = 0x424B4559;//"BKEY", the tree has byte keys and slotted pages, unlike a BTree file
+    static final int FORMAT_VERSION = 1;//moves on when the layout of a node changes
+    static final int NODE_HEADER = 24;
+    static final int MIN_BLOCK_SIZE = 128;
+    static final int MAX_BLOCK_SIZE = 1 << 16;
+    static final int OPTIMISTIC_TRIES = 4;//optimistic tries of a reader before it holds off the changes to structure
+    
+    /*
+     * Node layout:
+     * count, prefix length, start of the entries, right link,
+     * first child (0 in a leaf, a non leaf node can have no keys), the prefix,
+     * one 2 byte slot per entry with the offset of the entry in the block.
+     * The entries are written from the end of the block towards the slots.
+     *
+     * A leaf entry is the length and bytes of the key after the prefix,
+     * then the length and bytes of the value.
+     * A non leaf entry is the length and bytes of the key after the prefix,
+     * then the child that holds the keys >= the key.
+     */
+    
+    private class Page {
+        //one node, searched in place in its frame or in a copy of it
+        private long addr;
+        private ByteBuffer b;//only read with absolute gets
+        private int count;
+        private int prefixLen;
+        
+        private Page(long addr, ByteBuffer b) {
+            this.addr = addr;
+            this.b = b;
+            
+            count = getInt(0);
+            prefixLen = getShort(4);
+        }
+        
+        private Page(long addr) throws IOException {
+            //a copy of the node at addr
+            this(addr, copy(addr));
+        }
+        
+        private boolean leaf() {
+            return getLong(16) == 0;
+        }
+        
+        private int size() {
+            return count;
+        }
+        
+        private long right() {
+            return getLong(8);
+        }
+        
+        private int entry(int i) {
+            return getShort(NODE_HEADER + prefixLen + 2 * i);
+        }
+        
+        private int keyIndex(byte[] k) {
+            //the index of the first key that is >= k, or size() if there is none
+            
+            int size = size();
+            
+            if(order != null) {
+                return orderedIndex(k);
+            }
+            
+            int cmp = compareUnsigned(b, NODE_HEADER, NODE_HEADER + prefixLen, k, 0, Math.min(prefixLen, k.length));
+            
+            if(cmp > 0 || (cmp == 0 && k.length < prefixLen)) {
+                //k is before the prefix, so before every key of the node
+                return 0;
+            } else if(cmp < 0) {
+                return size;
+            }
+            
+            int low = 0;
+            int high = size;
+            
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                int e = entry(mid);
+                int len = getShort(e);
+                
+                if(compareUnsigned(b, e + 2, e + 2 + len, k, prefixLen, k.length) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            
+            return low;
+        }
+        
+        private int orderedIndex(byte[] k) {
+            //keyIndex for a tree with a comparator
+            int low = 0;
+            int high = size();
+            
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                
+                if(order.compare(key(mid), k) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            
+            return low;
+        }
+        
+        private boolean keyEquals(int i, byte[] k) {
+            //true if key i is k
+            if(i >= size()) {
+                return false;
+            } else if(order != null) {
+                return order.compare(key(i), k) == 0;
+            } else if(k.length < prefixLen) {
+                return false;
+            }
+            
+            int e = entry(i);
+            
+            return compareUnsigned(b, NODE_HEADER, NODE_HEADER + prefixLen, k, 0, prefixLen) == 0
+                    && compareUnsigned(b, e + 2, e + 2 + getShort(e), k, prefixLen, k.length) == 0;
+        }
+        
+        private int childIndex(byte[] k) {
+            //the child of a non leaf node to follow for k is after every key that is <= k
+            int i = keyIndex(k);
+            
+            return keyEquals(i, k) ? i + 1 : i;
+        }
+        
+        private long child(int i) {
+            if(i == 0) {
+                return getLong(16);
+            }
+            
+            int e = entry(i - 1);
+            
+            return getLong(e + 2 + getShort(e));
+        }
+        
+        private byte[] key(int i) {
+            int e = entry(i);
+            int len = getShort(e);
+            byte[] k = new byte[prefixLen + len];
+            
+            b.get(NODE_HEADER, k, 0, prefixLen);
+            b.get(e + 2, k, prefixLen, len);
+            
+            return k;
+        }
+        
+        private byte[] value(int i) {
+            int e = entry(i);
+            int v = e + 2 + getShort(e);
+            byte[] value = new byte[getShort(v)];
+            
+            b.get(v + 2, value);
+            
+            return value;
+        }
+        
+        private int getShort(int pos) {
+            return b.getShort(pos) & 0xFFFF;
+        }
+        
+        private int getInt(int pos) {
+            return b.getInt(pos);
+        }
+        
+        private long getLong(int pos) {
+            return b.getLong(pos);
+        }
+    }
+    
+    private ByteBuffer copy(long addr) throws IOException {
+        //a copy of the block at addr that is consistent with itself
+        return pool.read(addr, b -> {
+            byte[] c = new byte[blockSize];
+            b.get(0, c);
+            
+            return ByteBuffer.wrap(c);
+        });
+    }
+    
+    static int compareUnsigned(ByteBuffer b, int from, int to, byte[] k, int kFrom, int kTo) {
+        //Arrays.compareUnsigned of bytes from to to of b with bytes kFrom to kTo of k
+        int n = Math.min(to - from, kTo - kFrom);
+        
+        for(int i = 0; i < n; i++) {
+            int c = (b.get(from + i) & 0xFF) - (k[kFrom + i] & 0xFF);
+            
+            if(c != 0) {
+                return c;
+            }
+        }
+        
+        return (to - from) - (kTo - kFrom);
+    }
+    
+    private class Node {
+        //a node decoded for a change, written back whole
+        private long addr;
+        private boolean leaf;
+        private long right;
+        private ArrayList<byte[]> keys = new ArrayList<>();
+        private ArrayList<byte[]> values = new ArrayList<>();//leaf nodes
+        private ArrayList<Long> children = new ArrayList<>();//non leaf nodes, one more than keys
+        
+        private Node(long addr, boolean leaf) {
+            this.addr = addr;
+            this.leaf = leaf;
+        }
+        
+        private Node(Page p) {
+            addr = p.addr;
+            leaf = p.leaf();
+            right = p.right();
+            
+            if(!leaf) {
+                children.add(p.child(0));
+            }
+            
+            for(int i = 0; i < p.size(); i++) {
+                keys.add(p.key(i));
+                
+                if(leaf) {
+                    values.add(p.value(i));
+                } else {
+                    children.add(p.child(i + 1));
+                }
+            }
+        }
+        
+        private int entrySize(int i) {
+            //bytes used by entry i and its slot when the key is not compressed
+            return 4 + keys.get(i).length + (leaf ? 2 + values.get(i).length : 8);
+        }
+        
+        private int bytes() {
+            //an upper bound of the bytes used by the node, the prefix only makes it smaller
+            int size = NODE_HEADER;
+            
+            for(int i = 0; i < keys.size(); i++) {
+                size += entrySize(i);
+            }
+            
+            return size;
+        }
+        
+        private void writeNode() throws IOException {
+            //PRE: bytes() <= blockSize
+            
+            int n = keys.size();
+            int prefixLen = n == 0 ? 0 : commonPrefix(keys.get(0), keys.get(n - 1));
+            
+            //the keys between the first and last one only share their prefix in the order of the bytes
+            for(int i = 1; order != null && i < n - 1; i++) {
+                prefixLen = Math.min(prefixLen, commonPrefix(keys.get(0), keys.get(i)));
+            }
+            ByteBuffer b = pool.pinWrite(addr);
+            
+            b.putInt(0, n);
+            b.putShort(4, (short) prefixLen);
+            b.putLong(8, right);
+            b.putLong(16, leaf ? 0 : children.get(0));
+            
+            if(n > 0) {
+                b.put(NODE_HEADER, keys.get(0), 0, prefixLen);
+            }
+            
+            int pos = blockSize;
+            
+            for(int i = n - 1; i >= 0; i--) {
+                byte[] k = keys.get(i);
+                int len = k.length - prefixLen;
+                
+                pos -= 2 + len + (leaf ? 2 + values.get(i).length : 8);
+                b.putShort(NODE_HEADER + prefixLen + 2 * i, (short) pos);
+                b.putShort(pos, (short) len);
+                b.put(pos + 2, k, prefixLen, len);
+                
+                if(leaf) {
+                    b.putShort(pos + 2 + len, (short) values.get(i).length);
+                    b.put(pos + 4 + len, values.get(i));
+                } else {
+                    b.putLong(pos + 2 + len, children.get(i + 1));
+                }
+            }
+            
+            b.putShort(6, (short) pos);
+            pool.unpinWrite(addr);
+            changes++;
+        }
+    }
+    
+    public ByteKeyTree(String filename, int bsize) throws IOException {
+        this(filename, bsize, null, 0);
+    }
+    
+    ByteKeyTree(String filename, int bsize, WriteAheadLog wal, int walFile) throws IOException {
+        //make a new tree with bsize byte nodes
+        //if wal is not null the changes go to a log that is committed by the caller
+        
+        if(bsize < MIN_BLOCK_SIZE || bsize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("block size must be between " + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE);
+        }
+        
+        blockSize = bsize;
+        File path = new File(filename);
+        
+        if(path.exists()) {
+            path.delete();
+        }
+        
+        f = new RandomAccessFile(path, "rw");
+        fc = f.getChannel();
+        root = 0;
+        map = new FreeMap(0);
+        mapFile = filename + "Map";
+        new File(mapFile).delete();
+        
+        writeHeader();
+        
+        end = HEADER_SIZE;
+        pool = new BufferPool(fc, blockSize, HEADER_SIZE, POOL_FRAMES);
+        useLog(filename, wal, walFile);
+    }
+    
+    public ByteKeyTree(String filename, int bsize, Comparator<byte[]> order) throws IOException {
+        //make a new tree whose keys are in the order of the comparator
+        this(filename, bsize, null, 0);
+        this.order = order;
+    }
+    
+    public ByteKeyTree(String filename) throws IOException {
+        this(filename, null, 0);
+    }
+    
+    public ByteKeyTree(String filename, Comparator<byte[]> order) throws IOException {
+        //open a tree that was made with a comparator, it must be given the same one
+        this(filename, null, 0);
+        this.order = order;
+    }
+    
+    ByteKeyTree(String filename, WriteAheadLog wal, int walFile) throws IOException {
+        //open an existing tree
+        //if wal is null the tree has its own log and its committed changes are replayed first,
+        //otherwise the caller must have recovered wal
+        
+        if(wal == null) {
+            WriteAheadLog.recover(filename + "Log", new String[] {filename});
+        }
+        
+        f = new RandomAccessFile(filename, "rw");
+        fc = f.getChannel();
+        
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        BufferPool.readFully(fc, header, 0);
+        header.flip();
+        root = header.getLong();
+        int magic = header.getInt();
+        int version = header.getInt();
+        blockSize = header.getInt();
+        
+        if(magic != MAGIC || version != FORMAT_VERSION) {
+            //a BTree file or an older file, its nodes would be read as garbage
+            f.close();
+            throw new IOException(filename + " is not a byte key tree of format version " + FORMAT_VERSION);
+        }
+        
+        end = f.length();
+        pool = new BufferPool(fc, blockSize, HEADER_SIZE, POOL_FRAMES);
+        useLog(filename, wal, walFile);
+        
+        mapFile = filename + "Map";
+        map = FreeMap.open(mapFile);
+        
+        if(map == null) {
+            buildMap();
+        }
+        
+        end = block(map.size());
+    }
+    
+    private void buildMap() throws IOException {
+        //the tree was not closed, every block that is not reachable from the root is free
+        
+        map = new FreeMap((int) ((end - HEADER_SIZE + blockSize - 1) / blockSize));
+        
+        ArrayDeque<Long> todo = new ArrayDeque<>();
+        
+        if(root != 0) {
+            todo.push(root);
+        }
+        
+        while(!todo.isEmpty()) {
+            Page p = new Page(todo.pop());
+            map.use(slot(p.addr));
+            
+            for(int i = 0; i <= p.size() && !p.leaf(); i++) {
+                todo.push(p.child(i));
+            }
+        }
+    }
+    
+    private void useLog(String filename, WriteAheadLog wal, int walFile) throws IOException {
+        //a tree that is not part of a table keeps its own log in filename + "Log"
+        
+        if(wal != null) {
+            log = wal;
+            ownsLog = false;
+            logFile = walFile;
+        } else {
+            log = new WriteAheadLog(filename + "Log");
+            ownsLog = true;
+            logFile = 0;
+        }
+        
+        pool.useLog(log, logFile);
+    }
+    
+    synchronized void logChanges() throws IOException {
+        //log every block changed since the last call and the header
+        pool.logChanges();
+        log.write(logFile, 0, header());
+    }
+    
+    void committed(long end) {
+        //the blocks logged so far are committed by the record that ends at end in the log
+        pool.committed(end);
+    }
+    
+    private void endOp() throws IOException {
+        //a tree with its own log commits each change, a table commits its row with them
+        
+        if(!ownsLog) {
+            return;
+        }
+        
+        logChanges();
+        committed(log.commit());
+        
+        if(log.size > BTree.CHECKPOINT_SIZE) {
+            checkpoint();
+        }
+    }
+    
+    public void sync() throws IOException {
+        //make every change so far durable
+        log.sync();
+    }
+    
+    synchronized void checkpoint() throws IOException {
+        //write every block and the header to f so the log can be emptied
+        
+        pool.flush();
+        writeHeader();
+        fc.force(true);
+        
+        if(ownsLog) {
+            log.checkpoint();
+        }
+    }
+    
+    public int maxEntry() {
+        //the longest key plus value that fits, so that a split always leaves two nodes that fit
+        return (blockSize - NODE_HEADER) / 4 - 12;
+    }
+    
+    public boolean insert(byte[] key, long addr) throws IOException {
+        /*
+         * If key is not a duplicate add key to the tree
+         * addr is the address of the row that contains the key
+         * return true if the key is added
+         * return false if the key is a duplicate
+         */
+        
+        return insert(key, toBytes(addr));
+    }
+    
+    boolean crowded() {
+        //the blocks changed since the last commit fill half of the pool
+        return pool.crowded();
+    }
+    
+    synchronized boolean insert(byte[] key, byte[] value) throws IOException {
+        //value starts with the address of the row, a DBTable puts fields it covers after it
+        
+        checkSize(key, value);
+        
+        if(root == 0) {
+            Node n = new Node(getFree(0), true);
+            n.keys.add(key);
+            n.values.add(value);
+            n.writeNode();
+            root = n.addr;
+            endOp();
+            return true;
+        }
+        
+        Stack<Page> path = descend(key);
+        Page p = path.pop();
+        int i = p.keyIndex(key);
+        
+        if(p.keyEquals(i, key)) {
+            return false;
+        }
+        
+        Node n = new Node(p);
+        n.keys.add(i, key);
+        n.values.add(i, value);
+        
+        write(n, path);
+        endOp();
+        
+        return true;
+    }
+    
+    synchronized int insertGroup(byte[][] keys, byte[][] values, int from, int to) throws IOException {
+        //PRE: keys[from] to keys[to - 1] are in ascending order and not in the tree
+        /*
+         * Add keys[from] and the keys after it that go to the same leaf, as many
+         * as fit in the leaf and one more, and return the index after the last one added
+         * 
+         * The leaf is written once, and split once if the last key did not fit.
+         * The changes are not committed, the caller commits them.
+         */
+        
+        checkSize(keys[from], values[from]);
+        
+        if(root == 0) {
+            Node n = new Node(getFree(0), true);
+            n.keys.add(keys[from]);
+            n.values.add(values[from]);
+            n.writeNode();
+            root = n.addr;
+            return from + 1;
+        }
+        
+        Stack<Page> path = descend(keys[from]);
+        
+        //the keys from the separator after the path on are in the leaves to the right
+        byte[] bound = null;
+        
+        for(int i = 0; i < path.size() - 1; i++) {
+            Page p = path.get(i);
+            int c = p.childIndex(keys[from]);
+            
+            if(c < p.size()) {
+                bound = p.key(c);
+            }
+        }
+        
+        Node n = new Node(path.pop());
+        int bytes = n.bytes();
+        int pos = 0;
+        int end = from;
+        
+        while(end < to && bytes <= blockSize && (end == from || bound == null || compare(keys[end], bound) < 0)) {
+            checkSize(keys[end], values[end]);
+            
+            while(pos < n.keys.size() && compare(n.keys.get(pos), keys[end]) < 0) {
+                pos++;
+            }
+            
+            n.keys.add(pos, keys[end]);
+            n.values.add(pos, values[end]);
+            bytes += n.entrySize(pos);
+            pos++;
+            end++;
+        }
+        
+        write(n, path);
+        
+        return end;
+    }
+    
+    private void checkSize(byte[] key, byte[] value) {
+        if(key.length + value.length > maxEntry()) {
+            throw new IllegalArgumentException("key of " + key.length + " bytes is longer than " + (maxEntry() - value.length));
+        }
+    }
+    
+    synchronized boolean replace(byte[] key, byte[] value) throws IOException {
+        //give the key a new value, used by a DBTable when a row or a field it covers is updated
+        //return false if the key is not in the tree
+        
+        checkSize(key, value);
+        
+        if(root == 0) {
+            return false;
+        }
+        
+        Stack<Page> path = descend(key);
+        Page p = path.pop();
+        int i = p.keyIndex(key);
+        
+        if(!p.keyEquals(i, key)) {
+            return false;
+        }
+        
+        Node n = new Node(p);
+        n.values.set(i, value);
+        
+        write(n, path);
+        endOp();
+        
+        return true;
+    }
+    
+    private void write(Node n, Stack<Page> path) throws IOException {
+        //write n, a node that does not fit is split under the write lock of structure
+        
+        if(n.bytes() <= blockSize) {
+            n.writeNode();
+            return;
+        }
+        
+        long stamp = structure.writeLock();
+        
+        try {
+            writeUp(n, path);
+        } finally {
+            structure.unlockWrite(stamp);
+        }
+    }
+    
+    private void writeUp(Node n, Stack<Page> path) throws IOException {
+        //write n, splitting it and then the nodes above it as long as they do not fit
+        
+        while(n.bytes() > blockSize) {
+            Node r = split(n);
+            byte[] sep = n.leaf ? separator(n.keys.get(n.keys.size() - 1), r.keys.get(0)) : n.keys.remove(n.keys.size() - 1);
+            
+            r.writeNode();
+            n.writeNode();
+            
+            if(path.empty()) {
+                Node newRoot = new Node(getFree(n.addr), false);
+                newRoot.keys.add(sep);
+                newRoot.children.add(n.addr);
+                newRoot.children.add(r.addr);
+                newRoot.writeNode();
+                root = newRoot.addr;
+                return;
+            }
+            
+            Node parent = new Node(path.pop());
+            int ci = parent.children.indexOf(n.addr);
+            parent.keys.add(ci, sep);
+            parent.children.add(ci + 1, r.addr);
+            n = parent;
+        }
+        
+        n.writeNode();
+    }
+    
+    private Node split(Node n) throws IOException {
+        /*
+         * Move the entries after the point that halves the bytes of n to a new
+         * right node and link n to it
+         * A non leaf node keeps the key that moves up as its last key
+         */
+        
+        int total = n.bytes() - NODE_HEADER;
+        int half = 0;
+        int m = 0;
+        
+        while(m < n.keys.size() - 1 && half + n.entrySize(m) / 2 < total / 2) {
+            half += n.entrySize(m);
+            m++;
+        }
+        
+        //a non leaf node keeps a key besides the one that moves up
+        m = Math.max(n.leaf ? 1 : 2, m);
+        
+        Node r = new Node(getFree(n.addr), n.leaf);
+        
+        if(n.leaf) {
+            r.keys.addAll(n.keys.subList(m, n.keys.size()));
+            r.values.addAll(n.values.subList(m, n.values.size()));
+            n.keys.subList(m, n.keys.size()).clear();
+            n.values.subList(m, n.values.size()).clear();
+        } else {
+            //key m - 1 moves up, its child is the first child of r
+            r.keys.addAll(n.keys.subList(m, n.keys.size()));
+            r.children.addAll(n.children.subList(m, n.children.size()));
+            n.keys.subList(m, n.keys.size()).clear();
+            n.children.subList(m, n.children.size()).clear();
+        }
+        
+        r.right = n.right;
+        n.right = r.addr;
+        
+        return r;
+    }
+    
+    private byte[] separator(byte[] left, byte[] right) {
+        //PRE: left < right
+        //the shortest prefix of right that is greater than left
+        //a prefix of a key may not be in the order of a comparator, so that tree keeps all of right
+        
+        if(order != null) {
+            return right;
+        }
+        
+        return Arrays.copyOf(right, commonPrefix(left, right) + 1);
+    }
+    
+    private int compare(byte[] a, byte[] b) {
+        return order == null ? Arrays.compareUnsigned(a, b) : order.compare(a, b);
+    }
+    
+    static int commonPrefix(byte[] a, byte[] b) {
+        int i = Arrays.mismatch(a, b);
+        
+        return i < 0 ? a.length : i;
+    }
+    
+    public synchronized long remove(byte[] key) throws IOException {
+        /*
+         * If the key is in the tree, remove the key and return the address of the row
+         * return 0 if the key is not found in the tree
+         */
+        
+        if(root == 0) {
+            return 0;
+        }
+        
+        Stack<Page> path = descend(key);
+        Page p = path.pop();
+        int i = p.keyIndex(key);
+        
+        if(!p.keyEquals(i, key)) {
+            return 0;
+        }
+        
+        Node n = new Node(p);
+        n.keys.remove(i);
+        byte[] value = n.values.remove(i);
+        
+        if(path.empty() ? !n.keys.isEmpty() : n.bytes() >= blockSize / 4) {
+            n.writeNode();
+        } else {
+            long stamp = structure.writeLock();
+            
+            try {
+                rebalance(n, path);
+            } finally {
+                structure.unlockWrite(stamp);
+            }
+        }
+        
+        endOp();
+        
+        return toLong(value);
+    }
+    
+    private void rebalance(Node n, Stack<Page> path) throws IOException {
+        /*
+         * Write n, fixing it first if it is less than a quarter full
+         * n is merged with its sibling in the same parent when the two fit in one
+         * node, otherwise it borrows one entry from the sibling.
+         * The right node of a merge is freed and the parent is fixed the same way.
+         * A borrow can make the separator in the parent longer, so the parent is
+         * written by writeUp.
+         * A root without keys is replaced by its only child, or by nothing.
+         */
+        
+        while(true) {
+            if(path.empty()) {
+                if(!n.keys.isEmpty()) {
+                    n.writeNode();
+                } else {
+                    root = n.leaf ? 0 : n.children.get(0);
+                    addFree(n.addr);
+                }
+                
+                return;
+            }
+            
+            if(n.bytes() >= blockSize / 4) {
+                n.writeNode();
+                return;
+            }
+            
+            Node parent = new Node(path.pop());
+            int ci = parent.children.indexOf(n.addr);
+            int sep = ci < parent.keys.size() ? ci : ci - 1;
+            Node l = ci == sep ? n : new Node(new Page(parent.children.get(sep)));
+            Node r = ci == sep ? new Node(new Page(parent.children.get(sep + 1))) : n;
+            byte[] sepKey = parent.keys.get(sep);
+            int bytes = l.bytes() + r.bytes() - NODE_HEADER + (l.leaf ? 0 : 12 + sepKey.length);
+            
+            if(bytes > blockSize) {
+                borrow(l, r, parent, sep, l == n);
+                l.writeNode();
+                r.writeNode();
+                writeUp(parent, path);
+                return;
+            }
+            
+            if(!l.leaf) {
+                l.keys.add(sepKey);
+            }
+            
+            l.keys.addAll(r.keys);
+            l.values.addAll(r.values);
+            l.children.addAll(r.children);
+            l.right = r.right;
+            l.writeNode();
+            addFree(r.addr);
+            
+            parent.keys.remove(sep);
+            parent.children.remove(sep + 1);
+            n = parent;
+        }
+    }
+    
+    private void borrow(Node l, Node r, Node p, int sep, boolean toLeft) {
+        //move one entry between l and r and update the separator in p
+        
+        if(l.leaf) {
+            if(toLeft) {
+                l.keys.add(r.keys.remove(0));
+                l.values.add(r.values.remove(0));
+            } else {
+                r.keys.add(0, l.keys.remove(l.keys.size() - 1));
+                r.values.add(0, l.values.remove(l.values.size() - 1));
+            }
+            
+            p.keys.set(sep, separator(l.keys.get(l.keys.size() - 1), r.keys.get(0)));
+        } else if(toLeft) {
+            l.keys.add(p.keys.get(sep));
+            l.children.add(r.children.remove(0));
+            p.keys.set(sep, r.keys.remove(0));
+        } else {
+            r.keys.add(0, p.keys.get(sep));
+            r.children.add(0, l.children.remove(l.children.size() - 1));
+            p.keys.set(sep, l.keys.remove(l.keys.size() - 1));
+        }
+    }
+    
+    private Stack<Page> descend(byte[] k) throws IOException {
+        //PRE: the tree is not empty
+        //the path to the leaf for k
+        
+        Stack<Page> path = new Stack<>();
+        long addr = root;
+        
+        while(true) {
+            Page p = new Page(addr);
+            path.push(p);
+            
+            if(p.leaf()) {
+                return path;
+            }
+            
+            addr = p.child(p.childIndex(k));
+        }
+    }
+    
+    private Page findLeaf(byte[] k) throws IOException {
+        //a copy of the leaf for k, or of the first leaf if k is null, or null if the tree is empty
+        //a reader that keeps running into changes to structure stops retrying and holds them off
+        
+        for(int i = 0; i < OPTIMISTIC_TRIES; i++) {
+            long stamp = structure.tryOptimisticRead();
+            long addr = root;
+            
+            if(addr == 0 && structure.validate(stamp)) {
+                return null;
+            }
+            
+            long leaf = addr == 0 ? 0 : leafFrom(addr, k, stamp);
+            
+            if(leaf != 0) {
+                Page p = new Page(leaf);
+                
+                if(structure.validate(stamp)) {
+                    return p;
+                }
+            }
+            
+            Thread.onSpinWait();
+        }
+        
+        long stamp = structure.readLock();
+        
+        try {
+            return root == 0 ? null : new Page(leafFrom(root, k, stamp));
+        } finally {
+            structure.unlockRead(stamp);
+        }
+    }
+    
+    private long leafFrom(long addr, byte[] k, long stamp) throws IOException {
+        //the address of the leaf for k, or of the first leaf if k is null, under the node at addr
+        //return 0 if structure changed since stamp
+        
+        while(true) {
+            long node = addr;
+            long child = pool.read(node, b -> {
+                Page p = new Page(node, b);
+                
+                return p.leaf() ? 0 : p.child(k == null ? 0 : p.childIndex(k));
+            });
+            
+            if(!structure.validate(stamp)) {
+                return 0;
+            }
+            
+            if(child == 0) {
+                return addr;
+            }
+            
+            addr = child;
+        }
+    }
+    
+    public long search(byte[] k) throws IOException {
+        /*
+         * This is an equality search
+         *
+         * If the key is found return the address of the row with the key
+         * otherwise return 0
+         */
+        
+        byte[] value = value(k);
+        
+        return value == null ? 0 : toLong(value);
+    }
+    
+    byte[] value(byte[] k) throws IOException {
+        //the value of the key, or null if the key is not found
+        //the leaf is searched in its frame, only the value is copied
+        
+        for(int i = 0; i < OPTIMISTIC_TRIES; i++) {
+            long stamp = structure.tryOptimisticRead();
+            long addr = root;
+            
+            if(addr == 0 && structure.validate(stamp)) {
+                return null;
+            }
+            
+            long leaf = addr == 0 ? 0 : leafFrom(addr, k, stamp);
+            
+            if(leaf != 0) {
+                byte[] value = valueIn(leaf, k);
+                
+                if(structure.validate(stamp)) {
+                    return value;
+                }
+            }
+            
+            Thread.onSpinWait();
+        }
+        
+        long stamp = structure.readLock();
+        
+        try {
+            return root == 0 ? null : valueIn(leafFrom(root, k, stamp), k);
+        } finally {
+            structure.unlockRead(stamp);
+        }
+    }
+    
+    private byte[] valueIn(long leaf, byte[] k) throws IOException {
+        //the value of the key in the leaf at leaf, or null
+        return pool.read(leaf, b -> {
+            Page p = new Page(leaf, b);
+            
+            if(!p.leaf()) {
+                //the leaf was split or merged away, structure moved on and the caller tries again
+                return null;
+            }
+            
+            int i = p.keyIndex(k);
+            
+            return p.keyEquals(i, k) ? p.value(i) : null;
+        });
+    }
+    
+    public AddressList search(byte[] low, byte[] high) throws IOException {
+        //PRE: low <= high
+        //return the row addresses for all keys in the range low to high inclusive
+        
+        AddressList list = new AddressList();
+        Cursor c = range(low, high);
+        
+        while(c.next()) {
+            list.add(c.addr());
+        }
+        
+        return list;
+    }
+    
+    public Cursor range(byte[] low, byte[] high) throws IOException {
+        /*
+         * This is a range search that returns the keys one at a time
+         *
+         * The cursor starts at the first key >= low and stops at the first key > high
+         * low null starts at the first key and high null does not stop before the last one
+         */
+        
+        return new Cursor(low, high);
+    }
+    
+    public class Cursor {
+        /*
+         * Only a copy of the current leaf is kept in memory. If any node was
+         * written since the leaf was copied, the cursor finds the leaf for the
+         * last key it returned again. A borrow or merge moves keys to another
+         * node and a merge frees one, so the copy cannot be trusted after them.
+         * The cursor does not lock the tree. If structure changed while it
+         * moved to the leaf on the right, the right link it followed may be
+         * old, so it finds its place again. After a few tries it holds off the
+         * changes to structure while it moves.
+         */
+        
+        private Page leaf;
+        private int i;
+        private byte[] low;
+        private byte[] high;
+        private byte[] key;
+        private byte[] value;
+        private long seen;//changes when leaf was copied
+        private long stamp;//the version of structure when leaf was copied
+        
+        private Cursor(byte[] low, byte[] high) throws IOException {
+            this.low = low;
+            this.high = high;
+            
+            seek(this.low);
+        }
+        
+        private void seek(byte[] from) throws IOException {
+            //the first key >= from, or the first key of the tree if from is null
+            //changes is read first, a node written while the leaf is found moves it on
+            
+            seen = changes;
+            stamp = structure.tryOptimisticRead();
+            leaf = findLeaf(from);
+            i = leaf == null || from == null ? 0 : leaf.keyIndex(from);
+        }
+        
+        public boolean next() throws IOException {
+            //move to the next key in the range
+            //return false when there are no more keys in the range
+            
+            boolean moved = false;
+            
+            for(int t = 0; t < OPTIMISTIC_TRIES && !moved; t++) {
+                moved = move();
+            }
+            
+            if(!moved) {
+                long s = structure.readLock();
+                
+                try {
+                    move();
+                } finally {
+                    structure.unlockRead(s);
+                }
+            }
+            
+            if(leaf == null) {
+                return false;
+            }
+            
+            key = leaf.key(i);
+            
+            if(high != null && compare(key, high) > 0) {
+                leaf = null;
+                return false;
+            }
+            
+            value = leaf.value(i);
+            i++;
+            
+            return true;
+        }
+        
+        private boolean move() throws IOException {
+            //move leaf and i to the key after the last one returned
+            //return false if structure changed while the cursor moved right
+            
+            if(leaf != null && (seen != changes || !structure.validate(stamp))) {
+                seek(key == null ? low : key);
+                
+                if(key != null && leaf != null && leaf.keyEquals(i, key)) {
+                    i++;
+                }
+            }
+            
+            boolean right = false;
+            
+            while(leaf != null && i >= leaf.size()) {
+                long next = leaf.right();
+                leaf = next == 0 ? null : new Page(next);
+                i = 0;
+                right = true;
+            }
+            
+            return !right || structure.validate(stamp);
+        }
+        
+        public byte[] key() {
+            return key;
+        }
+        
+        public long addr() {
+            //the address of the row with the current key
+            return toLong(value);
+        }
+        
+        byte[] value() {
+            return value;
+        }
+    }
+    
+    public synchronized int height() throws IOException {
+        //the number of levels, 0 for an empty tree
+        int h = 0;
+        
+        for(long addr = root; addr != 0; h++) {
+            Page p = new Page(addr);
+            addr = p.leaf() ? 0 : p.child(0);
+        }
+        
+        return h;
+    }
+    
+    public synchronized void close() throws IOException {
+        //close the tree. The tree should not be accessed after close is called
+        
+        checkpoint();
+        
+        if(ownsLog) {
+            log.close();
+        }
+        
+        f.close();
+        map.save(mapFile);
+    }
+    
+    private void writeHeader() throws IOException {
+        BufferPool.writeFully(fc, header(), 0);
+    }
+    
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        
+        header.putLong(root);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(blockSize);
+        header.flip();
+        
+        return header;
+    }
+    
+    private long getFree(long near) throws IOException {
+        //a free block, the closest one after the block at near if there is one
+        
+        long addr = block(map.allocate(near == 0 ? 0 : slot(near)));
+        
+        if(addr >= end) {
+            end = addr + blockSize;
+        }
+        
+        return addr;
+    }
+    
+    private void addFree(long addr) {
+        map.release(slot(addr));
+    }
+    
+    private int slot(long addr) {
+        return (int) ((addr - HEADER_SIZE) / blockSize);
+    }
+    
+    private long block(int slot) {
+        return HEADER_SIZE + (long) slot * blockSize;
+    }
+    
+    static byte[] toBytes(long v) {
+        return ByteBuffer.allocate(8).putLong(v).array();
+    }
+    
+    static long toLong(byte[] b) {
+        return ByteBuffer.wrap(b).getLong();
+    }
+}
\ No newline at end of file
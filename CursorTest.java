@@ -0,0 +1,64 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+//Tests a ByteKeyTree cursor while keys beside it are removed
+public class CursorTest {
+
+	static final int KEYS = 5000;
+
+	private static byte[] key(int k) {
+		return ByteBuffer.allocate(4).putInt(k).array();
+	}
+
+	private static void run(String filename, int ahead, int behind) throws IOException {
+		ByteKeyTree t = new ByteKeyTree(filename, 128);
+		for (int i = 0; i < KEYS; i++) {
+			t.insert(key(i), i + 1);
+		}
+
+		//after each key the cursor returns, remove keys just ahead of it and just behind it
+		//so its leaf and the leaves beside it borrow and merge
+		boolean removed[] = new boolean[KEYS];
+		ByteKeyTree.Cursor c = t.range(null, null);
+		int expected = 0;
+		while (c.next()) {
+			int k = ByteBuffer.wrap(c.key()).getInt();
+			while (expected < KEYS && removed[expected]) {
+				expected++;
+			}
+			if (k != expected || c.addr() != k + 1) {
+				throw new IllegalStateException("ahead "+ahead+" behind "+behind+": cursor returned "+k+" instead of "+expected);
+			}
+			expected++;
+			for (int j = k + 1; j <= k + ahead && j < KEYS; j++) {
+				if (j % 3 != 0 && !removed[j]) {
+					t.remove(key(j));
+					removed[j] = true;
+				}
+			}
+			if (k - behind >= 0) {
+				t.remove(key(k - behind));
+				removed[k - behind] = true;
+			}
+		}
+		while (expected < KEYS && removed[expected]) {
+			expected++;
+		}
+		if (expected != KEYS) {
+			throw new IllegalStateException("ahead "+ahead+" behind "+behind+": cursor stopped before "+expected);
+		}
+		t.close();
+		System.out.println("ahead "+ahead+" behind "+behind+" ok");
+	}
+
+	public static void main(String args[]) throws IOException {
+		String filename = args.length > 0 ? args[0] : "cursor.txt";
+		run(filename, 4, 1);
+		run(filename, 12, 6);
+		run(filename, 40, 20);
+		new File(filename).delete();
+		new File(filename+"Log").delete();
+		new File(filename+"Map").delete();
+	}
+}
\ No newline at end of file
@@ -1,21 +1,105 @@
 //Jackson Lee
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 public class DBTable {
     
     RandomAccessFile rows;//the file that stores the rows in the table
-    long free;//head of the free list space for rows
+    FreeMap map;//the rows in use, row i starts at rowStart() + i * rowSize()
+    String mapFile;//where map is saved when the table is closed
+    int lastRow;//the row allocated last, the next row goes after it if it is free
     int numOtherFields;
     int[] otherFieldLengths;
-    BTree t;
+    BTree t;//the index of a table with int keys
+    ByteKeyTree wide;//the index of a table with long keys or covered fields, the keys are encoded by Keys
+    boolean longKeys;//true if the key field is a long, then t is null and wide is used
+    boolean clustered;//true if the rows are the values of wide, the rows file only has the header
+    boolean[] covered;//the fields that are also in the leaves of wide, after the row address
+    int coverSize;//bytes of the covered fields in a leaf
+    FileChannel rc;//used for positional reads and writes of whole rows
+    WriteAheadLog log;//changes to the rows and the B+Trees, file 0 is rows, file 1 is the B+Tree and file 2 + i is secondary index i
+    String filename;
+    volatile Index[] indexes;//the secondary indexes, replaced by a longer array when one is created
+    volatile Executor executor;//runs the async methods, null for the shared IOScheduler threads
+    BulkLoader loading;//the bulk load that is not finished, other changes wait for it to finish
+    
+    /*
+     * Searches can run on any number of threads at the same time as one change.
+     * Changes are synchronized on the table. Each thread decodes rows into its
+     * own RowReader, and a row is in unwritten before its key is added to the
+     * B+Tree, so a search never finds a key whose row is not there yet.
+     * 
+     * The log only redoes changes, so a row is not written to the rows file
+     * until the commit of its change is synced. Until then it is kept in
+     * unwritten and read from there. Otherwise a crash could leave the new
+     * bytes of a change that was not committed over a row that was.
+     * 
+     * A removed row can be reused by the next insert. removals counts the removes,
+     * and a search that sees it change while it reads a row looks the key up again.
+     * An update counts as a remove, so a search that reads the row while
+     * writeRows writes the new bytes over it reads it again.
+     */
+    private ThreadLocal<RowReader> readers;
+    private volatile long removals;
+    private ConcurrentHashMap<Long, byte[]> unwritten = new ConcurrentHashMap<>();//rows whose commit is not synced yet, by address
+    private volatile RowCache cache;//the rows of recently found keys
+    
+    static final int BATCH_ROWS = 64;//rows a RowBatch has room for before it grows
+    static final int INDEX_BLOCK_SIZE = 4096;//the smallest block size of a secondary index
+    static final int CLUSTER_ROWS = 16;//rows a leaf of a clustered table has room for
+    static final int INDEX_GROUP_ROWS = 16;//rows of one group of insertBatch when the table has secondary indexes, groups are committed together
+    static final long ROW_CACHE_BYTES = 1 << 20;//the default size of the row cache
+    
+    private class Index {
+        /*
+         * A secondary index on one or more of the other fields
+         * A key is the values of the fields and the address of the row, so rows with
+         * equal values have different keys and the keys for one value are a range.
+         */
+        
+        private int[] fields;
+        private ByteKeyTree tree;
+        
+        private Index(int[] on, ByteKeyTree t) {
+            fields = on;
+            tree = t;
+        }
+        
+        private boolean uses(boolean[] changed) {
+            //true if one of the fields of the index is changed
+            for(int f : fields) {
+                if(changed[f]) {
+                    return true;
+                }
+            }
+            
+            return false;
+        }
+        
+        private byte[] key(CharSequence[] values, long addr) {
+            //values has every other field of the row at addr
+            byte[][] parts = new byte[fields.length + 1][];
+            
+            for(int i = 0; i < fields.length; i++) {
+                parts[i] = Keys.of(values[fields[i]]);
+            }
+            
+            parts[fields.length] = Keys.of(addr);
+            
+            return Keys.composite(parts);
+        }
+    }
     
     private class Row {
-        private int keyField;
+        private long keyField;
         private char[][] otherFields;
         
         /*
          * Each row consists of unique key and one or more character array fields.
+         * The key is an int, or a long in a table made with long keys.
          * Each character array field is a fixed length field (for example 10 characters).
          * Each field can have a different length.
          * 
@@ -25,42 +109,76 @@ public class DBTable {
         
         //Constructors and other Row methods
         
-        private Row(int key, char[][] fields) {
+        private Row(long key, char[][] fields) {
             keyField = key;
             otherFields = fields;           
         }
         
         private Row(long addr) throws IOException {
-            rows.seek(addr);
-            
-            keyField = rows.readInt();
-            
-            for(int i = 0; i < otherFields.length; i++) {
-                for(int j = 0; i < otherFields[i].length; i++) {
-                    otherFields[i][j] = rows.readChar();
-                }
-            }
+            RowReader r = readers.get();
+            keyField = r.readRow(addr);
+            otherFields = r.fields();
         }
         
         private void writeRow(long addr) throws IOException {
-            rows.seek(addr);
+            //the row is logged now and written to the rows file once its commit is synced, see writeRows
+            ByteBuffer b = encode();
+            
+            unwritten.put(addr, b.array());
+            log.write(0, addr, b);
+        }
+        
+        private ByteBuffer encode() {
+            ByteBuffer b = ByteBuffer.allocate(rowSize());
             
-            rows.writeInt(keyField);
+            if(longKeys) {
+                b.putLong(keyField);
+            } else {
+                b.putInt((int) keyField);
+            }
             
             for(int i = 0; i < otherFields.length; i++) {
                 for(int j = 0; j < otherFields[i].length; j++) {
-                    rows.writeChar(otherFields[i][j]);
+                    b.putChar(otherFields[i][j]);
                 }
             }
+            
+            b.flip();
+            
+            return b;
         }
     }
     
     public DBTable(String filename, int[] fL, int bsize) throws IOException {
+        this(filename, fL, bsize, false);
+    }
+    
+    public DBTable(String filename, int[] fL, int bsize, boolean longKeys) throws IOException {
+        this(filename, fL, bsize, longKeys, new int[0]);
+    }
+    
+    public DBTable(String filename, int[] fL, int bsize, boolean longKeys, int[] cover) throws IOException {
+        this(filename, fL, bsize, longKeys, cover, false);
+    }
+    
+    public DBTable(String filename, int[] fL, int bsize, boolean longKeys, boolean clustered) throws IOException {
+        this(filename, fL, bsize, longKeys, new int[0], clustered);
+    }
+    
+    private DBTable(String filename, int[] fL, int bsize, boolean longKeys, int[] cover, boolean clustered) throws IOException {
         /*
          * Use this constructor to create a new DBTable
          * fL is the lengths of the otherFields
          * fL.length indicates how many other fields are part of the row
          * bsize is the block size. It is used to calculate the order of the B+Tree
+         * if longKeys is true the keys are longs, the B+Tree is a ByteKeyTree and
+         * bsize must be at least ByteKeyTree.MIN_BLOCK_SIZE
+         * cover lists other fields that are also kept in the leaves of the B+Tree,
+         * so a search that only needs those fields does not read the rows. A table
+         * that covers fields uses a ByteKeyTree like a table with long keys.
+         * if clustered is true the rows are kept in the leaves of a ByteKeyTree in
+         * order of the keys, so a range search reads the rows one leaf after the other.
+         * The block size is made large enough for CLUSTER_ROWS rows.
          * 
          * A B+Tree must be created for the key field in the table
          * 
@@ -70,7 +188,27 @@ public class DBTable {
         
         otherFieldLengths = fL;
         numOtherFields = fL.length;
-        free = 0;
+        this.longKeys = longKeys;
+        this.clustered = clustered;
+        this.filename = filename;
+        indexes = new Index[0];
+        covered = new boolean[numOtherFields];
+        
+        for(int f : cover) {
+            if(f < 0 || f >= numOtherFields) {
+                throw new IllegalArgumentException("no field " + f);
+            }
+            
+            covered[f] = true;
+        }
+        
+        coverSize = coverSize();
+        
+        if(cover.length > 0 && 16 + coverSize > (bsize - ByteKeyTree.NODE_HEADER) / 4 - 12) {
+            //the same limit as ByteKeyTree.maxEntry, for a key and a value of 8 bytes each
+            throw new IllegalArgumentException("the covered fields do not fit in blocks of " + bsize + " bytes");
+        }
+        
         File path = new File(filename);
         
         if(path.exists()) {
@@ -78,18 +216,41 @@ public class DBTable {
         }
         
         rows = new RandomAccessFile(path, "rw");
+        rows.write(header().array());
         
-        rows.writeInt(numOtherFields);
-        for(int i = 0; i < numOtherFields; i++) {
-            rows.writeInt(fL[i]);
+        log = new WriteAheadLog(filename+"Log");
+        
+        if(clustered) {
+            wide = new ByteKeyTree(filename+"Index", leafSize(bsize), log, 1);
+        } else if(longKeys || cover.length > 0) {
+            wide = new ByteKeyTree(filename+"Index", bsize, log, 1);
+        } else {
+            t = new BTree(filename+"Index", bsize, log, 1);
         }
-        rows.writeLong(free);
-
-        t = new BTree(filename+"Index", bsize);
+        
+        rowBuffers();
+        
+        map = new FreeMap(0);
+        mapFile = filename+"Map";
+        new File(mapFile).delete();
+        new File(filename+"Indexes").delete();
     }
     
     public DBTable(String filename) throws IOException {
         //Use this constructor to open an existing table
+        //changes that were committed to the log but not written to the files are replayed first
+        
+        this.filename = filename;
+        int[][] on = readIndexes();
+        String[] files = new String[2 + on.length];
+        files[0] = filename;
+        files[1] = filename+"Index";
+        
+        for(int i = 0; i < on.length; i++) {
+            files[2 + i] = indexFile(i);
+        }
+        
+        WriteAheadLog.recover(filename+"Log", files);
         
         File path = new File(filename);
         
@@ -99,171 +260,1776 @@ public class DBTable {
         
         numOtherFields = rows.readInt();
         otherFieldLengths = new int[numOtherFields];
+        covered = new boolean[numOtherFields];
+        boolean covers = false;
         
         for(int i = 0; i < numOtherFields; i++) {
             otherFieldLengths[i] = rows.readInt();
+            
+            if(otherFieldLengths[i] < 0) {
+                //see header
+                otherFieldLengths[i] = -otherFieldLengths[i];
+                covered[i] = true;
+                covers = true;
+            }
+        }
+        long flags = rows.readLong();//see header
+        
+        if(flags >= 16) {
+            //an old table with a free list
+            flags = 0;
+        }
+        
+        longKeys = (flags & 8) != 0;
+        clustered = (flags & 1) != 0;
+        coverSize = coverSize();
+        
+        log = new WriteAheadLog(filename+"Log");
+        
+        if(longKeys || covers || clustered) {
+            wide = new ByteKeyTree(filename+"Index", log, 1);
+        } else {
+            t = new BTree(filename+"Index", log, 1);
+        }
+        
+        indexes = new Index[on.length];
+        
+        for(int i = 0; i < on.length; i++) {
+            indexes[i] = new Index(on[i], new ByteKeyTree(indexFile(i), log, 2 + i));
         }
-        free = rows.readLong();
         
-        t = new BTree(filename+"Index");
+        rowBuffers();
+        
+        mapFile = filename+"Map";
+        map = FreeMap.open(mapFile);
+        
+        if(map == null) {
+            buildMap();
+        }
     }
     
-    public boolean insert(int key, char[][] fields) throws IOException {
-        //PRE: the length of each rows fields matches the expected length
-        /*
-         * If a row with the key is not in the table, the row is added and the method
-         * returns true otherwise the row is not added and the method returns false.
-         * 
-         * The method must use the B+Tree to determine if a row with the key exists.
-         * 
-         * If the row is added the key is also added into the B+Tree.
-         */
+    private void buildMap() throws IOException {
+        //the table was not closed, every row without a key in the B+Tree is free
         
-        Row r = new Row(key, fields);
-        long addr = getFree();
+        if(clustered) {
+            map = new FreeMap(0);
+            return;
+        }
         
-        if(t.insert(key, addr) == false) {
-            return false;
+        map = new FreeMap((int) ((rows.length() - rowStart() + rowSize() - 1) / rowSize()));
+        KeyCursor c = range(Long.MIN_VALUE, Long.MAX_VALUE);
+        
+        while(c.next()) {
+            map.use(row(c.addr()));
         }
+    }
+    
+    private int leafSize(int bsize) {
+        //a block size of at least bsize with room for CLUSTER_ROWS rows, and for one row in an entry
+        //an entry is the key, the row and 14 bytes for its slot, lengths and an 8 byte key
         
-        r.writeRow(addr);
+        int bs = Math.max(bsize, ByteKeyTree.MIN_BLOCK_SIZE);
         
-        return true;
+        while(bs < ByteKeyTree.NODE_HEADER + CLUSTER_ROWS * (rowSize() + 14) || (bs - ByteKeyTree.NODE_HEADER) / 4 - 12 < 8 + rowSize()) {
+            if(bs == ByteKeyTree.MAX_BLOCK_SIZE) {
+                if((bs - ByteKeyTree.NODE_HEADER) / 4 - 12 < 8 + rowSize()) {
+                    throw new IllegalArgumentException("a row of " + rowSize() + " bytes does not fit in a leaf");
+                }
+                
+                break;
+            }
+            
+            bs = Math.min(2 * bs, ByteKeyTree.MAX_BLOCK_SIZE);
+        }
+        
+        return bs;
     }
     
-    public boolean remove(int key) {
-        /*
-         * If a row witht the key is in the table it is removed and true is returned
-         * otherwise false is returned.
-         * 
-         * The method must use the B+Tree to determine if a row with the key exists.
-         * 
-         * If the row is deleted the key must be deleted from the B+Tree.
-         */
-        return true;
+    private long find(long key) throws IOException {
+        //the address of the row with the key, or 0
+        
+        if(wide != null) {
+            return wide.search(Keys.of(key));
+        }
+        
+        return key == (int) key ? t.search((int) key) : 0;
     }
     
-    public LinkedList<String> search(int key) throws IOException {
-        /*
-         * If a row with the key is found in the table return a list of the other fields in the row.
-         * The String values in the list should not include the null characters.
-         * 
-         * If a row with the key is not found return an empty list.
-         * 
-         * The method must use the equality search in the B+Tree.
-         */
+    private KeyCursor range(long low, long high) throws IOException {
+        return new KeyCursor(low, high);
+    }
+    
+    private class KeyCursor {
+        //a range search of the index, whichever kind of B+Tree it is
+        private BTree.RangeCursor ints;
+        private ByteKeyTree.Cursor longs;
         
-        LinkedList<String> list = new LinkedList<>();
-        long k = t.search(key);
+        private KeyCursor(long low, long high) throws IOException {
+            if(wide != null) {
+                longs = wide.range(Keys.of(low), Keys.of(high));
+            } else if(low <= Integer.MAX_VALUE && high >= Integer.MIN_VALUE) {
+                ints = t.range((int) Math.max(low, Integer.MIN_VALUE), (int) Math.min(high, Integer.MAX_VALUE));
+            }
+        }
         
-        if(k == 0) {
-            return list;
+        private boolean next() throws IOException {
+            if(longs != null) {
+                return longs.next();
+            }
+            
+            return ints != null && ints.next();
         }
         
-        rows.seek(k);
-        rows.readInt();
+        private long key() {
+            return longs != null ? Keys.toLong(longs.key()) : ints.key();
+        }
         
-        for(int i = 0; i < numOtherFields; i++) {
-            String s = "";
-            for(int j = 0; j < otherFieldLengths[i]; j++) {
-                char c = rows.readChar();
-                if(c != '\0') {
-                    s += c;
-                }
+        private long addr() {
+            //the address of the row, in a clustered table the key, which is what a secondary index keeps
+            
+            if(clustered) {
+                return key();
             }
-            list.add(s);
+            
+            return longs != null ? longs.addr() : ints.addr();
         }
         
-        return list;
+        private byte[] value() {
+            //the row address and the covered fields, or the row in a clustered table
+            return longs.value();
+        }
     }
     
-    public LinkedList<LinkedList<String>> search(int low, int high) throws IOException {
-        //PRE: low <= high
-        /*
-         * For each row with a key that is in the range low to high inclusive list
-         * of the fields in the row is added to the list returned by the call.
-         * 
-         * If there are no rows with a key in the range return an empty list
-         * 
-         * The method must use the range search in B+Tree
-         */
+    private void rowBuffers() {
+        rc = rows.getChannel();
+        readers = ThreadLocal.withInitial(RowReader::new);
+        cache = new RowCache(ROW_CACHE_BYTES, rowSize());
+    }
+    
+    private class RowReader {
+        //the last row read by one thread, reused by every read so decoding a row does not allocate
+        private ByteBuffer rowBuf;
+        private char[] rowChars;
+        private int[] fieldStarts;
+        private int[] fieldEnds;
+        private FieldView[] views;
         
-        /*
-         * take LinkedList<long> returned by BTree search
-         * search for each long, and put the data into a LinkedList<String>
-         * Then put those LinkedList<String> into the LinkedList<LinkedList<String>>
-         */
-        LinkedList<LinkedList<String>> list = new LinkedList<>();
+        private RowReader() {
+            rowBuf = ByteBuffer.allocate(rowSize());
+            rowChars = new char[(rowSize() - keySize()) / 2];
+            fieldStarts = new int[numOtherFields];
+            fieldEnds = new int[numOtherFields];
+            views = new FieldView[numOtherFields];
+            
+            int start = 0;
+            
+            for(int i = 0; i < numOtherFields; i++) {
+                fieldStarts[i] = start;
+                views[i] = new FieldView(i);
+                start += otherFieldLengths[i];
+            }
+        }
+        
+        private void readRowBytes(long addr) throws IOException {
+            //read the whole row at addr into rowBuf with one positional read
+            //a row that is not written yet is copied from unwritten
+            
+            byte[] row = unwritten.get(addr);
+            
+            if(row != null) {
+                fill(row);
+                return;
+            }
+            
+            rowBuf.clear();
+            
+            while(rowBuf.hasRemaining()) {
+                if(rc.read(rowBuf, addr + rowBuf.position()) < 0) {
+                    throw new EOFException("row at " + addr + " is past the end of the file");
+                }
+            }
+            
+            rowBuf.flip();
+        }
         
-        LinkedList<Long> addrs = t.search(low, high);
+        private void fill(byte[] row) {
+            //a row that is not read from the rows file, from a leaf of a clustered table or from unwritten
+            rowBuf.clear();
+            rowBuf.put(row);
+            rowBuf.flip();
+        }
+        
+        private long readRow(long addr) throws IOException {
+            //read the row at addr and decode its fields into rowChars
+            //return the key of the row
+            
+            readRowBytes(addr);
+            
+            return decode();
+        }
         
-        while(addrs.size() != 0) {
-            LinkedList<String> str = new LinkedList<>();
-            rows.seek(addrs.remove());
-            rows.readInt();
+        private long decode() {
+            //decode the fields of the row in rowBuf into rowChars and return its key
+            int c = 0;
+            int pos = keySize();
             
             for(int i = 0; i < numOtherFields; i++) {
-                String s = "";
+                fieldEnds[i] = c;
+                
                 for(int j = 0; j < otherFieldLengths[i]; j++) {
-                    char c = rows.readChar();
-                    if(c != '\0') {
-                        s += c;
+                    char ch = rowBuf.getChar(pos);
+                    rowChars[c] = ch;
+                    c++;
+                    pos += 2;
+                    
+                    if(ch != '\0') {
+                        fieldEnds[i] = c;
                     }
                 }
-                str.add(s);
             }
             
-            list.add(str);
+            return longKeys ? rowBuf.getLong(0) : rowBuf.getInt(0);
         }
-        return list;
-    }
-    
-    public void print() throws IOException {
-        //Print the rows to standard output in ascending order (based on the keys)
-        //One row per line
         
-        LinkedList<Long> addrs = t.search(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        private char[][] fields() {
+            //copies of the fields of the last row decoded, with their null characters
+            char[][] f = new char[numOtherFields][];
+            
+            for(int i = 0; i < numOtherFields; i++) {
+                f[i] = Arrays.copyOfRange(rowChars, fieldStarts[i], fieldStarts[i] + otherFieldLengths[i]);
+            }
+            
+            return f;
+        }
         
-        while(addrs.size() != 0) {
-            rows.seek(addrs.remove());
-            System.out.print("Key:"+rows.readInt()+" Contents:");
+        private LinkedList<String> fieldList() {
+            //the fields of the last row read
+            LinkedList<String> list = new LinkedList<>();
             
             for(int i = 0; i < numOtherFields; i++) {
-                for(int j = 0; j < otherFieldLengths[i]; j++) {
-                    System.out.print(rows.readChar());
+                list.add(new String(rowChars, fieldStarts[i], fieldEnds[i] - fieldStarts[i]));
+            }
+            
+            return list;
+        }
+        
+        private class FieldView implements CharSequence {
+            /*
+             * One field of the last row read, without the trailing null characters.
+             * The view reads the characters of the row buffer in place, so it
+             * changes when the next row is read by the same thread.
+             */
+            
+            private int field;
+            
+            private FieldView(int f) {
+                field = f;
+            }
+            
+            public int length() {
+                return fieldEnds[field] - fieldStarts[field];
+            }
+            
+            public char charAt(int i) {
+                return rowChars[fieldStarts[field] + i];
+            }
+            
+            public CharSequence subSequence(int start, int end) {
+                return toString().subSequence(start, end);
+            }
+            
+            public String toString() {
+                return new String(rowChars, fieldStarts[field], length());
+            }
+            
+            public int hashCode() {
+                //the same value as the hashCode of the String with these characters
+                int h = 0;
+                
+                for(int i = fieldStarts[field]; i < fieldEnds[field]; i++) {
+                    h = 31 * h + rowChars[i];
                 }
-                System.out.print(" ");
+                
+                return h;
             }
-            System.out.println();
         }
     }
     
-    public void close() throws IOException {
-        //closes the DBTable. The table should not be used after it is closed
+    public synchronized boolean insert(long key, char[][] fields) throws IOException {
+        //PRE: the length of each rows fields matches the expected length
+        /*
+         * If a row with the key is not in the table, the row is added and the method
+         * returns true otherwise the row is not added and the method returns false.
+         * 
+         * The method must use the B+Tree to determine if a row with the key exists.
+         * 
+         * If the row is added the key is also added into the B+Tree.
+         */
         
-        rows.seek(0);
-        rows.writeInt(numOtherFields);
-        for(int i = 0; i < numOtherFields; i++) {
-            rows.writeInt(otherFieldLengths[i]);
+        checkLoading();
+        checkKey(key);
+        
+        if(clustered) {
+            //the B+Tree finds a duplicate as it adds the row
+            if(!wide.insert(Keys.of(key), new Row(key, fields).encode().array())) {
+                return false;
+            }
+            
+            addToIndexes(fields, key);
+            commit();
+            
+            return true;
         }
-        rows.writeLong(free);
-        t.close();
-        rows.close();
+        
+        if(find(key) != 0) {
+            return false;
+        }
+        
+        Row r = new Row(key, fields);
+        long addr = getFree();
+        
+        r.writeRow(addr);
+        addKey(key, addr, fields);
+        addToIndexes(fields, addr);
+        commit();
+        
+        return true;
     }
     
-    private long getFree() throws IOException {
-        long addr;
+    public synchronized int insertBatch(long[] keys, char[][][] fields) throws IOException {
+        //PRE: the length of each rows fields matches the expected length
+        /*
+         * Add the rows whose keys are not in the table, fields[i] is the row with keys[i]
+         * return the number of rows added, a row whose key is in the table or earlier
+         * in keys is not added
+         * 
+         * The rows are sorted by key and written to the free rows after the last row
+         * allocated, rows that are next to each other with one write. The keys that
+         * go to one leaf of the B+Tree are added together, and groups are committed
+         * together until their blocks fill half of the buffer pool of the B+Tree or
+         * of an index, so after a crash only some of the rows of a batch may be in
+         * the table. With secondary indexes a group has at most INDEX_GROUP_ROWS
+         * rows, so its index entries do not fill a pool, and the keys and index
+         * entries of a group are committed together, so a row is never in the
+         * table without its index entries.
+         */
+        
+        checkLoading();
+        
+        for(long k : keys) {
+            checkKey(k);
+        }
+        
+        Integer[] byKey = new Integer[keys.length];
+        
+        for(int i = 0; i < keys.length; i++) {
+            byKey[i] = i;
+        }
         
-        if(free == 0) {
-            addr = rows.length();
+        //the sort is stable, so the first of equal keys is kept
+        Arrays.sort(byKey, (x, y) -> Long.compare(keys[x], keys[y]));
+        
+        long[] k = new long[keys.length];
+        char[][][] f = new char[keys.length][][];
+        int m = 0;
+        
+        for(int i : byKey) {
+            if(m == 0 || keys[i] != k[m - 1]) {
+                k[m] = keys[i];
+                f[m] = fields[i];
+                m++;
+            }
+        }
+        
+        //leave out the keys in the table, found[i] is 0 if k[i] is not in the table
+        long[] found;
+        
+        if(wide != null) {
+            found = new long[m];
+            
+            for(int i = 0; i < m; i++) {
+                found[i] = wide.value(Keys.of(k[i])) == null ? 0 : 1;
+            }
         } else {
-            rows.seek(free);
-            addr = free;
-            rows.seek(addr);
-            free = rows.readLong();
+            int[] ints = new int[m];
+            
+            for(int i = 0; i < m; i++) {
+                ints[i] = (int) k[i];
+            }
+            
+            found = t.searchMany(ints);
+        }
+        
+        int n = 0;
+        
+        for(int i = 0; i < m; i++) {
+            if(found[i] == 0) {
+                k[n] = k[i];
+                f[n] = f[i];
+                n++;
+            }
+        }
+        
+        if(clustered) {
+            byte[][] wideKeys = new byte[n][];
+            byte[][] rows = new byte[n][];
+            
+            for(int i = 0; i < n; i++) {
+                wideKeys[i] = Keys.of(k[i]);
+                rows[i] = new Row(k[i], f[i]).encode().array();
+            }
+            
+            insertGroups(wideKeys, rows, k, f, n);
+            
+            return n;
+        }
+        
+        //the rows are encoded into one buffer, then each run of rows next to each other is logged at once
+        //writeRows writes them to the rows file the same way once they are committed
+        int size = rowSize();
+        long[] addrs = new long[n];
+        byte[] rowBytes = new byte[n * size];
+        
+        for(int i = 0; i < n; i++) {
+            addrs[i] = getFree();
+            ByteBuffer row = new Row(k[i], f[i]).encode();
+            unwritten.put(addrs[i], row.array());
+            row.get(rowBytes, i * size, size);
         }
         
-        return addr;
+        for(int i = 1, start = 0; i <= n; i++) {
+            if(i == n || addrs[i] != addrs[i - 1] + size) {
+                log.write(0, addrs[start], ByteBuffer.wrap(rowBytes, start * size, (i - start) * size));
+                start = i;
+            }
+        }
+        
+        if(wide != null) {
+            byte[][] wideKeys = new byte[n][];
+            byte[][] values = new byte[n][];
+            
+            for(int i = 0; i < n; i++) {
+                wideKeys[i] = Keys.of(k[i]);
+                values[i] = leafValue(addrs[i], f[i]);
+            }
+            
+            insertGroups(wideKeys, values, addrs, f, n);
+            
+            return n;
+        }
+        
+        int[] ints = new int[n];
+        
+        for(int i = 0; i < n; i++) {
+            ints[i] = (int) k[i];
+        }
+        
+        for(int i = 0; i < n; ) {
+            //the index entries of a group can be in a different block each, so the group is kept small
+            int end = t.insertGroup(ints, addrs, i, indexes.length > 0 ? Math.min(n, i + INDEX_GROUP_ROWS) : n);
+            
+            for(int j = i; j < end; j++) {
+                addToIndexes(f[j], addrs[j]);
+            }
+            
+            if(crowded()) {
+                commit();
+            }
+            
+            i = end;
+        }
+        
+        commit();
+        
+        return n;
+    }
+    
+    private void insertGroups(byte[][] keys, byte[][] values, long[] addrs, char[][][] fields, int n) throws IOException {
+        //PRE: keys are in ascending order and not in wide
+        //insertBatch for a table with wide, addrs[i] is the address of the row with keys[i], its key in a clustered table
+        
+        for(int i = 0; i < n; ) {
+            int end = wide.insertGroup(keys, values, i, indexes.length > 0 ? Math.min(n, i + INDEX_GROUP_ROWS) : n);
+            
+            for(int j = i; j < end; j++) {
+                addToIndexes(fields[j], addrs[j]);
+            }
+            
+            if(crowded()) {
+                commit();
+            }
+            
+            i = end;
+        }
+        
+        commit();
+    }
+    
+    private void checkLoading() {
+        //the rows and keys of a bulk load are added in order, a change made between them would be lost
+        if(loading != null) {
+            throw new IllegalStateException("the table is being bulk loaded");
+        }
+    }
+    
+    private boolean crowded() {
+        //the blocks changed since the last commit fill half of the pool of the B+Tree or of an index
+        if(wide != null ? wide.crowded() : t.crowded()) {
+            return true;
+        }
+        
+        for(Index x : indexes) {
+            if(x.tree.crowded()) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private void checkKey(long key) {
+        if(!longKeys && key != (int) key) {
+            throw new IllegalArgumentException("key " + key + " does not fit in a table with int keys");
+        }
+    }
+    
+    private void addKey(long key, long addr, char[][] fields) throws IOException {
+        if(wide != null) {
+            wide.insert(Keys.of(key), leafValue(addr, fields));
+        } else {
+            t.insert((int) key, addr);
+        }
+    }
+    
+    private byte[] leafValue(long addr, char[][] fields) {
+        //the value of a key in wide: the row address then the covered fields
+        ByteBuffer b = ByteBuffer.allocate(8 + coverSize);
+        b.putLong(addr);
+        
+        for(int i = 0; i < numOtherFields; i++) {
+            if(covered[i]) {
+                for(char c : fields[i]) {
+                    b.putChar(c);
+                }
+            }
+        }
+        
+        return b.array();
+    }
+    
+    private void fromLeaf(ByteBuffer row, long key, byte[] value) {
+        //encode a row with the key and the covered fields in value, the other fields are empty
+        
+        byte[] b = row.array();
+        int pos = keySize();
+        int v = 8;
+        
+        row.clear();
+        
+        if(longKeys) {
+            row.putLong(0, key);
+        } else {
+            row.putInt(0, (int) key);
+        }
+        
+        for(int i = 0; i < numOtherFields; i++) {
+            int len = 2 * otherFieldLengths[i];
+            
+            if(covered[i]) {
+                System.arraycopy(value, v, b, pos, len);
+                v += len;
+            } else {
+                Arrays.fill(b, pos, pos + len, (byte) 0);
+            }
+            
+            pos += len;
+        }
+    }
+    
+    private void addToIndexes(char[][] fields, long addr) throws IOException {
+        //add the row at addr to every secondary index, after the row is written
+        
+        if(indexes.length == 0) {
+            return;
+        }
+        
+        CharSequence[] values = new CharSequence[numOtherFields];
+        
+        for(int i = 0; i < numOtherFields; i++) {
+            values[i] = CharBuffer.wrap(fields[i]);
+        }
+        
+        for(Index x : indexes) {
+            x.tree.insert(x.key(values, addr), addr);
+        }
+    }
+    
+    private void commit() throws IOException {
+        //the row, the B+Tree blocks and both headers of one change are committed together
+        
+        if(wide != null) {
+            wide.logChanges();
+        } else {
+            t.logChanges();
+        }
+        
+        for(Index x : indexes) {
+            x.tree.logChanges();
+        }
+        
+        log.write(0, 0, header());
+        long end = log.commit();
+        
+        if(wide != null) {
+            wide.committed(end);
+        } else {
+            t.committed(end);
+        }
+        
+        for(Index x : indexes) {
+            x.tree.committed(end);
+        }
+        
+        //the commit synced the log when it completed a group
+        if(!unwritten.isEmpty() && log.size == log.end()) {
+            writeRows();
+        }
+        
+        if(log.size > BTree.CHECKPOINT_SIZE) {
+            checkpoint();
+        }
+    }
+    
+    public synchronized void sync() throws IOException {
+        //make every change so far durable, otherwise changes are synced in groups
+        log.sync();
+        writeRows();
+    }
+    
+    private void writeRows() throws IOException {
+        //PRE: the log is synced, so every row in unwritten is committed
+        //write the rows in unwritten to the rows file in order, each run of rows next to each other at once
+        
+        if(unwritten.isEmpty()) {
+            return;
+        }
+        
+        long[] addrs = new long[unwritten.size()];
+        int n = 0;
+        
+        for(long addr : unwritten.keySet()) {
+            addrs[n++] = addr;
+        }
+        
+        Arrays.sort(addrs);
+        int size = rowSize();
+        
+        for(int i = 1, start = 0; i <= n; i++) {
+            if(i == n || addrs[i] != addrs[i - 1] + size) {
+                ByteBuffer run = ByteBuffer.allocate((i - start) * size);
+                
+                for(int j = start; j < i; j++) {
+                    run.put(unwritten.get(addrs[j]));
+                }
+                
+                run.flip();
+                
+                while(run.hasRemaining()) {
+                    rc.write(run, addrs[start] + run.position());
+                }
+                
+                //a search that does not find a row in unwritten reads it from the file
+                for(int j = start; j < i; j++) {
+                    unwritten.remove(addrs[j]);
+                }
+                
+                start = i;
+            }
+        }
+    }
+    
+    public void setGroupCommit(int commits) {
+        //number of inserts that are made durable by one sync of the log
+        log.setGroupSize(commits);
+    }
+    
+    private void checkpoint() throws IOException {
+        //write everything in the log to the files so the log can be emptied
+        
+        log.sync();
+        writeRows();
+        
+        if(wide != null) {
+            wide.checkpoint();
+        } else {
+            t.checkpoint();
+        }
+        
+        for(Index x : indexes) {
+            x.tree.checkpoint();
+        }
+        
+        rc.write(header(), 0);
+        rc.force(true);
+        log.checkpoint();
+    }
+    
+    public synchronized boolean createIndex(int... fields) throws IOException {
+        /*
+         * Add a secondary index on one or more of the other fields, numbered from 0
+         * The rows are ordered by the first field, then the second...
+         * Rows with equal values are all in the index.
+         * The index is built from the rows in the table and kept up to date by
+         * insert and remove. searchBy uses an index whose first field is the one searched.
+         * 
+         * return false if the table already has an index on the same fields
+         */
+        
+        checkLoading();
+        
+        if(fields.length == 0) {
+            throw new IllegalArgumentException("an index needs at least one field");
+        }
+        
+        for(int i = 0; i < fields.length; i++) {
+            if(fields[i] < 0 || fields[i] >= numOtherFields) {
+                throw new IllegalArgumentException("no field " + fields[i]);
+            }
+            
+            for(int j = 0; j < i; j++) {
+                if(fields[j] == fields[i]) {
+                    throw new IllegalArgumentException("field " + fields[i] + " is in the index twice");
+                }
+            }
+        }
+        
+        for(Index x : indexes) {
+            if(Arrays.equals(x.fields, fields)) {
+                return false;
+            }
+        }
+        
+        /*
+         * The log is emptied first, so until the index is saved in the list of
+         * indexes the log only has changes to the new index. After a crash they
+         * are not replayed and the index is not opened.
+         */
+        checkpoint();
+        
+        int n = indexes.length;
+        Index x = new Index(fields.clone(), new ByteKeyTree(indexFile(n), indexBlockSize(fields), log, 2 + n));
+        KeyCursor c = range(Long.MIN_VALUE, Long.MAX_VALUE);
+        RowReader r = readers.get();
+        
+        while(c.next()) {
+            readNext(r, c, removals);
+            r.decode();
+            x.tree.insert(x.key(r.views, c.addr()), c.addr());
+            x.tree.logChanges();
+            x.tree.committed(log.commit());
+            
+            if(log.size > BTree.CHECKPOINT_SIZE) {
+                log.sync();
+                x.tree.checkpoint();
+                log.checkpoint();
+            }
+        }
+        
+        log.sync();
+        x.tree.checkpoint();
+        log.checkpoint();
+        
+        Index[] more = Arrays.copyOf(indexes, n + 1);
+        more[n] = x;
+        writeIndexes(more);
+        indexes = more;
+        
+        return true;
+    }
+    
+    private int indexBlockSize(int[] fields) {
+        //a block size that fits the longest key of an index on fields
+        //a character is 2 bytes of a key, 4 if both are 0, and each field but the last part ends with 2 bytes
+        
+        int entry = 16;//the row address at the end of the key and the value
+        
+        for(int f : fields) {
+            entry += 4 * otherFieldLengths[f] + 2;
+        }
+        
+        int bsize = INDEX_BLOCK_SIZE;
+        
+        while((bsize - ByteKeyTree.NODE_HEADER) / 4 - 12 < entry) {
+            if(bsize == ByteKeyTree.MAX_BLOCK_SIZE) {
+                throw new IllegalArgumentException("the fields are too long to index together");
+            }
+            
+            bsize *= 2;
+        }
+        
+        return bsize;
+    }
+    
+    private String indexFile(int i) {
+        return filename+"Index"+(i + 1);
+    }
+    
+    private void writeIndexes(Index[] all) throws IOException {
+        //save the fields of each secondary index, so the table opens them again
+        
+        int len = 4;
+        
+        for(Index x : all) {
+            len += 4 + 4 * x.fields.length;
+        }
+        
+        ByteBuffer b = ByteBuffer.allocate(len);
+        b.putInt(all.length);
+        
+        for(Index x : all) {
+            b.putInt(x.fields.length);
+            
+            for(int f : x.fields) {
+                b.putInt(f);
+            }
+        }
+        
+        b.flip();
+        
+        try(RandomAccessFile out = new RandomAccessFile(filename+"Indexes", "rw")) {
+            FileChannel c = out.getChannel();
+            c.truncate(0);
+            
+            while(b.hasRemaining()) {
+                c.write(b, b.position());
+            }
+            
+            c.force(true);
+        }
+    }
+    
+    private int[][] readIndexes() throws IOException {
+        //the fields of each secondary index saved by writeIndexes
+        
+        File path = new File(filename+"Indexes");
+        
+        if(!path.exists()) {
+            return new int[0][];
+        }
+        
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            int[][] on = new int[in.readInt()][];
+            
+            for(int i = 0; i < on.length; i++) {
+                on[i] = new int[in.readInt()];
+                
+                for(int j = 0; j < on[i].length; j++) {
+                    on[i][j] = in.readInt();
+                }
+            }
+            
+            return on;
+        }
+    }
+    
+    public synchronized BulkLoader bulkLoader(double fill) throws IOException {
+        /*
+         * Load rows that are added in ascending key order
+         * The rows are written one after the other and the B+Tree is built
+         * bottom up, fill is the fraction of each B+Tree node that is used
+         * A table with long keys, covered fields or clustered rows adds the keys to its B+Tree one at a time
+         * 
+         * The rows of the keys in one leaf are logged together and committed
+         * with the leaf, so after a crash the table has the rows of the leaves
+         * that were committed.
+         * 
+         * The table must be empty, and the table cannot be changed in any
+         * other way until finish is called
+         */
+        
+        checkLoading();
+        
+        if(wide != null) {
+            if(wide.root != 0) {
+                throw new IllegalStateException("bulk load needs an empty table");
+            }
+            
+            loading = new BulkLoader(null);
+        } else {
+            loading = new BulkLoader(t.bulkLoader(fill));
+        }
+        
+        return loading;
+    }
+    
+    public class BulkLoader {
+        private BTree.BulkLoader keys;//null in a table with long keys
+        private boolean first = true;
+        private long last;
+        private byte[] run = new byte[BATCH_ROWS * rowSize()];//rows added since the last commit, next to each other
+        private int runRows;
+        private long runStart;//the address of the first row in run
+        
+        private BulkLoader(BTree.BulkLoader k) {
+            keys = k;
+        }
+        
+        public boolean add(long key, char[][] fields) throws IOException {
+            //PRE: the length of each rows fields matches the expected length
+            //return false and do not add the row if the key is not greater than the last key added
+            
+            synchronized(DBTable.this) {
+                checkKey(key);
+                
+                if(!first && key <= last) {
+                    return false;
+                }
+                
+                if(clustered) {
+                    wide.insert(Keys.of(key), new Row(key, fields).encode().array());
+                    addToIndexes(fields, key);
+                } else {
+                    long addr = getFree();
+                    
+                    stage(addr, new Row(key, fields).encode().array());
+                    
+                    if(keys != null) {
+                        keys.add((int) key, addr);
+                    } else {
+                        wide.insert(Keys.of(key), leafValue(addr, fields));
+                    }
+                    
+                    addToIndexes(fields, addr);
+                }
+                
+                first = false;
+                last = key;
+                
+                //a leaf that is full was logged, the blocks of a table that adds its keys one at a time fill the pool
+                if((keys != null && keys.written()) || crowded()) {
+                    logRun();
+                    commit();
+                }
+                
+                return true;
+            }
+        }
+        
+        private void stage(long addr, byte[] row) {
+            //the row is read from unwritten until it is committed and synced
+            //it is logged with the rows next to it when the run is logged
+            
+            unwritten.put(addr, row);
+            
+            if(runRows > 0 && addr != runStart + (long) runRows * row.length) {
+                logRun();
+            }
+            
+            if(runRows == 0) {
+                runStart = addr;
+            }
+            
+            if((runRows + 1) * row.length > run.length) {
+                run = Arrays.copyOf(run, 2 * run.length);
+            }
+            
+            System.arraycopy(row, 0, run, runRows * row.length, row.length);
+            runRows++;
+        }
+        
+        private void logRun() {
+            if(runRows > 0) {
+                log.write(0, runStart, ByteBuffer.wrap(run, 0, runRows * rowSize()));
+                runRows = 0;
+            }
+        }
+        
+        public void finish() throws IOException {
+            //the rows are committed before the levels above the leaves are built
+            synchronized(DBTable.this) {
+                logRun();
+                commit();
+                
+                if(keys != null) {
+                    keys.finish();
+                }
+                
+                commit();
+                loading = null;
+            }
+        }
+    }
+    
+    public synchronized boolean remove(long key) throws IOException {
+        /*
+         * If a row witht the key is in the table it is removed and true is returned
+         * otherwise false is returned.
+         * 
+         * The method must use the B+Tree to determine if a row with the key exists.
+         * 
+         * If the row is deleted the key must be deleted from the B+Tree.
+         */
+        
+        checkLoading();
+        
+        long addr;
+        RowReader r = readers.get();
+        
+        if(clustered) {
+            //the row is read before it leaves the B+Tree, its fields give its index keys
+            if(!readAddr(r, key)) {
+                return false;
+            }
+            
+            wide.remove(Keys.of(key));
+            addr = key;
+        } else {
+            if(wide != null) {
+                addr = wide.remove(Keys.of(key));
+            } else {
+                addr = key == (int) key ? t.remove((int) key) : 0;
+            }
+            
+            if(addr == 0) {
+                return false;
+            }
+            
+            if(indexes.length > 0) {
+                //the row is still there until it is reused, its fields give its index keys
+                r.readRowBytes(addr);
+            }
+        }
+        
+        if(indexes.length > 0) {
+            r.decode();
+            
+            for(Index x : indexes) {
+                x.tree.remove(x.key(r.views, addr));
+            }
+        }
+        
+        removals++;
+        cache.invalidate(key);
+        
+        if(!clustered) {
+            addFree(addr);
+        }
+        
+        commit();
+        
+        return true;
+    }
+    
+    public synchronized boolean update(long key, char[][] fields) throws IOException {
+        //PRE: the length of each rows fields matches the expected length
+        /*
+         * If a row with the key is in the table its other fields are replaced by fields
+         * and true is returned, otherwise false is returned.
+         * 
+         * The row is found with one search of the B+Tree and only the bytes that
+         * change are logged. The new row is written where the row is once the
+         * commit is synced, see writeRows. The B+Tree only changes when the
+         * row or a changed field is kept in its leaves, and a secondary index only
+         * when one of its fields changes.
+         */
+        
+        return update(key, 0, fields);
+    }
+    
+    public synchronized boolean updateField(long key, int field, char[] chars) throws IOException {
+        //PRE: chars is not longer than the field, a shorter value is padded with null characters
+        //replace one field of the row with the key as update does
+        
+        if(field < 0 || field >= numOtherFields) {
+            throw new IllegalArgumentException("no field " + field);
+        }
+        
+        return update(key, field, new char[][] {chars});
+    }
+    
+    private boolean update(long key, int first, char[][] fields) throws IOException {
+        //replace the fields of the row with the key from field first on by fields
+        
+        checkLoading();
+        
+        RowReader r = readers.get();
+        long addr;
+        
+        if(clustered) {
+            if(!readAddr(r, key)) {
+                return false;
+            }
+            
+            addr = key;
+        } else {
+            addr = find(key);
+            
+            if(addr == 0) {
+                return false;
+            }
+            
+            r.readRowBytes(addr);
+        }
+        
+        //the new row is the old one with the fields encoded over it
+        byte[] old = Arrays.copyOf(r.rowBuf.array(), r.rowBuf.limit());
+        byte[] row = old.clone();
+        int pos = keySize();
+        
+        for(int i = 0; i < first; i++) {
+            pos += 2 * otherFieldLengths[i];
+        }
+        
+        for(int i = 0; i < fields.length; i++) {
+            int len = otherFieldLengths[first + i];
+            
+            if(fields[i].length > len) {
+                throw new IllegalArgumentException("field " + (first + i) + " is longer than " + len + " characters");
+            }
+            
+            for(int j = 0; j < len; j++) {
+                char c = j < fields[i].length ? fields[i][j] : '\0';
+                row[pos++] = (byte) (c >>> 8);
+                row[pos++] = (byte) c;
+            }
+        }
+        
+        int start = Arrays.mismatch(old, row);
+        
+        if(start < 0) {
+            return true;
+        }
+        
+        int end = row.length;
+        
+        while(old[end - 1] == row[end - 1]) {
+            end--;
+        }
+        
+        boolean[] changed = new boolean[numOtherFields];
+        boolean coveredChanged = false;
+        pos = keySize();
+        
+        for(int i = 0; i < numOtherFields; i++) {
+            int next = pos + 2 * otherFieldLengths[i];
+            changed[i] = !Arrays.equals(old, pos, next, row, pos, next);
+            coveredChanged |= changed[i] && covered[i];
+            pos = next;
+        }
+        
+        //the keys of the old row in the indexes on a changed field, while r has the old row
+        ArrayList<Index> moved = new ArrayList<>();
+        ArrayList<byte[]> oldKeys = new ArrayList<>();
+        
+        if(indexes.length > 0) {
+            r.decode();
+            
+            for(Index x : indexes) {
+                if(x.uses(changed)) {
+                    moved.add(x);
+                    oldKeys.add(x.key(r.views, addr));
+                }
+            }
+        }
+        
+        r.fill(row);
+        r.decode();
+        
+        if(clustered) {
+            wide.replace(Keys.of(key), row);
+        } else {
+            //searches read the new row from unwritten until writeRows writes it over the old one
+            unwritten.put(addr, row);
+            removals++;
+            log.write(0, addr + start, ByteBuffer.wrap(row, start, end - start));
+            
+            if(coveredChanged) {
+                wide.replace(Keys.of(key), leafValue(addr, r.fields()));
+            }
+        }
+        
+        for(int i = 0; i < moved.size(); i++) {
+            Index x = moved.get(i);
+            x.tree.remove(oldKeys.get(i));
+            x.tree.insert(x.key(r.views, addr), addr);
+        }
+        
+        cache.invalidate(key);
+        commit();
+        
+        return true;
+    }
+    
+    private boolean readCurrent(RowReader r, long key, long addr, long seen) throws IOException {
+        /*
+         * Read the bytes of the row with the key into r
+         * addr came from the B+Tree when removals was seen. If a row was removed
+         * since then, the row at addr may be free or reused, so the key is found again.
+         * return false if the key is no longer in the table
+         */
+        
+        r.readRowBytes(addr);
+        
+        while(removals != seen) {
+            seen = removals;
+            addr = find(key);
+            
+            if(addr == 0) {
+                return false;
+            }
+            
+            r.readRowBytes(addr);
+        }
+        
+        return true;
+    }
+    
+    private boolean readNext(RowReader r, KeyCursor c, long seen) throws IOException {
+        //read the row of the current key of c into r, as readCurrent does
+        
+        if(clustered) {
+            r.fill(c.value());
+            return true;
+        }
+        
+        return readCurrent(r, c.key(), c.addr(), seen);
+    }
+    
+    private boolean readKey(RowReader r, long key) throws IOException {
+        //read the row with the key into r, return false if the key is not in the table
+        
+        RowCache c = cache;
+        byte[] row = c.get(key);
+        
+        if(row != null) {
+            r.fill(row);
+            return true;
+        }
+        
+        long version = c.version(key);
+        boolean found;
+        
+        if(clustered) {
+            found = readAddr(r, key);
+        } else {
+            long seen = removals;
+            long k = find(key);
+            
+            found = k != 0 && readCurrent(r, key, k, seen);
+        }
+        
+        if(found) {
+            c.put(key, Arrays.copyOf(r.rowBuf.array(), r.rowBuf.limit()), version);
+        }
+        
+        return found;
+    }
+    
+    private boolean readAddr(RowReader r, long addr) throws IOException {
+        //read the row at addr into r, in a clustered table addr is the key
+        //return false if a clustered table has no row with the key
+        
+        if(clustered) {
+            byte[] row = wide.value(Keys.of(addr));
+            
+            if(row == null) {
+                return false;
+            }
+            
+            r.fill(row);
+        } else {
+            r.readRowBytes(addr);
+        }
+        
+        return true;
+    }
+    
+    public LinkedList<String> search(long key) throws IOException {
+        /*
+         * If a row with the key is found in the table return a list of the other fields in the row.
+         * The String values in the list should not include the null characters.
+         * 
+         * If a row with the key is not found return an empty list.
+         * 
+         * The method must use the equality search in the B+Tree.
+         */
+        
+        RowReader r = readers.get();
+        
+        if(!readKey(r, key)) {
+            return new LinkedList<>();
+        }
+        
+        r.decode();
+        
+        return r.fieldList();
+    }
+    
+    public RowBatch searchMany(long[] keys) throws IOException {
+        /*
+         * Return the rows with the keys that are in the table, in order of the keys
+         * Each key is returned once, keys that are not found are left out.
+         * 
+         * The B+Tree finds the sorted keys in one descent and the rows are read in
+         * order of their addresses, so they are read from the start of the file to the end.
+         */
+        
+        long[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        int m = 0;
+        
+        for(int i = 0; i < sorted.length; i++) {
+            if((m == 0 || sorted[i] != sorted[m - 1]) && (longKeys || sorted[i] == (int) sorted[i])) {
+                sorted[m++] = sorted[i];
+            }
+        }
+        
+        RowBatch batch = new RowBatch(otherFieldLengths, longKeys, m);
+        RowReader r = readers.get();
+        
+        if(clustered) {
+            for(int i = 0; i < m; i++) {
+                if(readAddr(r, sorted[i])) {
+                    batch.add(r.rowBuf);
+                }
+            }
+            
+            return batch;
+        }
+        
+        long seen = removals;
+        long[] addrs = new long[m];
+        
+        if(wide != null) {
+            for(int i = 0; i < m; i++) {
+                addrs[i] = wide.search(Keys.of(sorted[i]));
+            }
+        } else {
+            int[] ints = new int[m];
+            
+            for(int i = 0; i < m; i++) {
+                ints[i] = (int) sorted[i];
+            }
+            
+            addrs = t.searchMany(ints);
+        }
+        
+        //the rows are read in order of address into rowBytes, then added in order of key
+        //order has the row number of each key found in its high half and the key's index in the low half
+        long[] order = new long[m];
+        int n = 0;
+        
+        for(int i = 0; i < m; i++) {
+            if(addrs[i] != 0) {
+                order[n++] = (long) row(addrs[i]) << 32 | i;
+            }
+        }
+        
+        Arrays.sort(order, 0, n);
+        
+        int size = rowSize();
+        byte[] rowBytes = new byte[m * size];
+        boolean[] read = new boolean[m];
+        
+        for(int j = 0; j < n; j++) {
+            int i = (int) order[j];
+            
+            if(readCurrent(r, sorted[i], addrs[i], seen)) {
+                r.rowBuf.get(rowBytes, i * size, size);
+                read[i] = true;
+            }
+        }
+        
+        for(int i = 0; i < m; i++) {
+            if(read[i]) {
+                batch.add(ByteBuffer.wrap(rowBytes, i * size, size));
+            }
+        }
+        
+        return batch;
+    }
+    
+    public CharSequence searchField(long key, int field) throws IOException {
+        /*
+         * Return one field of the row with the key, without the trailing null characters
+         * return null if a row with the key is not found
+         * 
+         * The result is a view of the row buffer of the calling thread, nothing is copied.
+         * It is only valid until the thread's next read from this table, use toString to keep it.
+         */
+        
+        RowReader r = readers.get();
+        
+        if(covered[field]) {
+            //the field is in the leaf with the key, the row is not read
+            byte[] value = wide.value(Keys.of(key));
+            
+            if(value == null) {
+                return null;
+            }
+            
+            fromLeaf(r.rowBuf, key, value);
+            r.decode();
+            
+            return r.views[field];
+        }
+        
+        if(!readKey(r, key)) {
+            return null;
+        }
+        
+        r.decode();
+        
+        return r.views[field];
+    }
+    
+    public LinkedList<LinkedList<String>> search(long low, long high) throws IOException {
+        //PRE: low <= high
+        /*
+         * For each row with a key that is in the range low to high inclusive list
+         * of the fields in the row is added to the list returned by the call.
+         * 
+         * If there are no rows with a key in the range return an empty list
+         * 
+         * The method must use the range search in B+Tree
+         */
+        
+        /*
+         * walk the keys in the range with a cursor on the B+Tree
+         * read the row of each key, and put the data into a LinkedList<String>
+         * Then put those LinkedList<String> into the LinkedList<LinkedList<String>>
+         */
+        LinkedList<LinkedList<String>> list = new LinkedList<>();
+        
+        long seen = removals;
+        KeyCursor c = range(low, high);
+        RowReader r = readers.get();
+        
+        while(c.next()) {
+            if(readNext(r, c, seen)) {
+                r.decode();
+                list.add(r.fieldList());
+            }
+        }
+        return list;
+    }
+    
+    public RowBatch searchBatch(long low, long high) throws IOException {
+        //PRE: low <= high
+        /*
+         * The same range search as search(low, high) with the rows returned by column
+         * Each row is read with one call and the result uses a few arrays instead
+         * of a list node and a String for every field
+         */
+        
+        long seen = removals;
+        KeyCursor c = range(low, high);
+        RowBatch batch = new RowBatch(otherFieldLengths, longKeys, BATCH_ROWS);
+        RowReader r = readers.get();
+        
+        while(c.next()) {
+            if(readNext(r, c, seen)) {
+                batch.add(r.rowBuf);
+            }
+        }
+        
+        return batch;
+    }
+    
+    public RowBatch searchBatch(long low, long high, int... fields) throws IOException {
+        //PRE: low <= high
+        /*
+         * The same range search as searchBatch(low, high) for a search that only needs some fields
+         * If the table covers every field listed, the fields come from the leaves of
+         * the B+Tree and no row is read. The other fields of the batch are empty.
+         * Otherwise the rows are read and the batch has every field.
+         */
+        
+        if(!covers(fields)) {
+            return searchBatch(low, high);
+        }
+        
+        KeyCursor c = range(low, high);
+        RowBatch batch = new RowBatch(otherFieldLengths, longKeys, BATCH_ROWS);
+        ByteBuffer row = ByteBuffer.allocate(rowSize());
+        
+        while(c.next()) {
+            fromLeaf(row, c.key(), c.value());
+            batch.add(row);
+        }
+        
+        return batch;
+    }
+    
+    public RowBatch searchBy(int field, CharSequence value) throws IOException {
+        //the rows whose field has the value, without the trailing null characters
+        return searchBy(field, value, value);
+    }
+    
+    public RowBatch searchBy(int field, CharSequence low, CharSequence high) throws IOException {
+        //PRE: low <= high
+        /*
+         * The rows whose field is in the range low to high inclusive
+         * Values are compared by character without the trailing null characters.
+         * 
+         * An index whose first field is field is used and the rows are in order of the field.
+         * If the table has no such index every row is read, in order of the keys.
+         */
+        
+        RowBatch batch = new RowBatch(otherFieldLengths, longKeys, BATCH_ROWS);
+        RowReader r = readers.get();
+        byte[] from = Keys.of(low);
+        byte[] to = Keys.of(high);
+        Index x = indexOn(field);
+        
+        if(x == null) {
+            long seen = removals;
+            KeyCursor c = range(Long.MIN_VALUE, Long.MAX_VALUE);
+            
+            while(c.next()) {
+                if(readNext(r, c, seen)) {
+                    r.decode();
+                    byte[] v = Keys.of(r.views[field]);
+                    
+                    if(Arrays.compareUnsigned(v, from) >= 0 && Arrays.compareUnsigned(v, to) <= 0) {
+                        batch.add(r.rowBuf);
+                    }
+                }
+            }
+            
+            return batch;
+        }
+        
+        //the keys whose first field is high all start with last
+        byte[] first = Keys.composite(from, new byte[0]);
+        byte[] last = Keys.composite(to, new byte[0]);
+        long seen = removals;
+        ByteKeyTree.Cursor c = x.tree.range(first, null);
+        
+        while(c.next()) {
+            byte[] k = c.key();
+            int m = Arrays.mismatch(k, last);
+            
+            if(m >= 0 && m < last.length && Arrays.compareUnsigned(k, last) > 0) {
+                break;
+            }
+            
+            if(readIndexed(r, x, k, c.addr(), seen)) {
+                batch.add(r.rowBuf);
+            }
+        }
+        
+        return batch;
+    }
+    
+    private Index indexOn(int field) {
+        //the index with the fewest fields whose first field is field, or null
+        Index best = null;
+        
+        for(Index x : indexes) {
+            if(x.fields[0] == field && (best == null || x.fields.length < best.fields.length)) {
+                best = x;
+            }
+        }
+        
+        return best;
+    }
+    
+    private boolean readIndexed(RowReader r, Index x, byte[] key, long addr, long seen) throws IOException {
+        /*
+         * Read the bytes of the row at addr into r, the row was found in x with key
+         * The index key has the row address, so if a row was removed since removals
+         * was seen the row is still the one in the index if the key is still there.
+         * return false if the key is no longer in the index
+         */
+        
+        if(!readAddr(r, addr)) {
+            return false;
+        }
+        
+        while(removals != seen) {
+            seen = removals;
+            
+            if(x.tree.value(key) == null || !readAddr(r, addr)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    public void setRowCache(long bytes) {
+        //replace the row cache by an empty one that uses about bytes, 0 turns the cache off
+        cache = new RowCache(bytes, rowSize());
+    }
+    
+    public long cacheHits() {
+        //searches for one key that found the row in the row cache
+        return cache.hits();
+    }
+    
+    public long cacheMisses() {
+        return cache.misses();
+    }
+    
+    public void setExecutor(Executor e) {
+        //the async methods run on e, or on the shared IOScheduler threads if e is null
+        //a service on virtual threads can pass an executor that starts one for each task
+        executor = e;
+    }
+    
+    private Executor executor() {
+        Executor e = executor;
+        return e == null ? IOScheduler.shared() : e;
+    }
+    
+    public CompletableFuture<LinkedList<String>> searchAsync(long key) {
+        //search(key) on another thread, searches that run at once overlap their reads
+        return IOScheduler.submit(executor(), () -> search(key));
+    }
+    
+    public CompletableFuture<LinkedList<LinkedList<String>>> searchAsync(long low, long high) {
+        return IOScheduler.submit(executor(), () -> search(low, high));
+    }
+    
+    public CompletableFuture<RowBatch> searchBatchAsync(long low, long high) {
+        return IOScheduler.submit(executor(), () -> searchBatch(low, high));
+    }
+    
+    public CompletableFuture<Boolean> insertAsync(long key, char[][] fields) {
+        //changes still run one at a time, the caller does not wait for its turn
+        return IOScheduler.submit(executor(), () -> insert(key, fields));
+    }
+    
+    public CompletableFuture<Boolean> removeAsync(long key) {
+        return IOScheduler.submit(executor(), () -> remove(key));
+    }
+    
+    public void print() throws IOException {
+        //Print the rows to standard output in ascending order (based on the keys)
+        //One row per line
+        
+        long seen = removals;
+        KeyCursor c = range(Long.MIN_VALUE, Long.MAX_VALUE);
+        StringBuilder line = new StringBuilder();
+        RowReader r = readers.get();
+        
+        while(c.next()) {
+            if(!readNext(r, c, seen)) {
+                continue;
+            }
+            
+            line.setLength(0);
+            line.append("Key:").append(r.decode()).append(" Contents:");
+            
+            for(int i = 0; i < numOtherFields; i++) {
+                line.append(r.rowChars, r.fieldStarts[i], otherFieldLengths[i]);
+                line.append(" ");
+            }
+            System.out.println(line);
+        }
+    }
+    
+    public synchronized void close() throws IOException {
+        //closes the DBTable. The table should not be used after it is closed
+        
+        checkpoint();
+        
+        if(wide != null) {
+            wide.close();
+        } else {
+            t.close();
+        }
+        
+        for(Index x : indexes) {
+            x.tree.close();
+        }
+        
+        log.close();
+        rows.close();
+        map.save(mapFile);
+    }
+    
+    private void addFree(long addr) {
+        //the row at addr is not written, it is free as soon as map says so
+        map.release(row(addr));
+    }
+    
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(rowStart());
+        
+        header.putInt(numOtherFields);
+        for(int i = 0; i < numOtherFields; i++) {
+            //the length of a covered field is negative, a field length never was
+            header.putInt(covered[i] ? -otherFieldLengths[i] : otherFieldLengths[i]);
+        }
+        //was the head of a free list, free rows are kept in map
+        //it now has flags, 8 for long keys and 1 for a clustered table
+        //an old free list started at a row, after the header, so never below 16
+        header.putLong((longKeys ? 8 : 0) | (clustered ? 1 : 0));
+        header.flip();
+        
+        return header;
+    }
+    
+    private int coverSize() {
+        int size = 0;
+        
+        for(int i = 0; i < numOtherFields; i++) {
+            if(covered[i]) {
+                size += 2 * otherFieldLengths[i];
+            }
+        }
+        
+        return size;
+    }
+    
+    private boolean covers(int[] fields) {
+        //true if the fields can be read from the leaves of the B+Tree
+        
+        if(wide == null || coverSize == 0) {
+            return false;
+        }
+        
+        for(int f : fields) {
+            if(!covered[f]) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private int keySize() {
+        return longKeys ? 8 : 4;
+    }
+    
+    private int rowSize() {
+        //bytes used by a row: the key and 2 bytes for each character of the other fields
+        int size = keySize();
+        
+        for(int i = 0; i < numOtherFields; i++) {
+            size += 2 * otherFieldLengths[i];
+        }
+        
+        return size;
+    }
+    
+    private int rowStart() {
+        //bytes used by the header, the rows start after it
+        return 12 + 4 * numOtherFields;
+    }
+    
+    private long getFree() {
+        //a free row, the closest one after the last row allocated
+        //so rows inserted together are read together by a range search
+        lastRow = map.allocate(lastRow);
+        
+        return rowStart() + (long) lastRow * rowSize();
+    }
+    
+    private int row(long addr) {
+        return (int) ((addr - rowStart()) / rowSize());
     }
     
     public static void main(String[] args) throws IOException {
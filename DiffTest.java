@@ -0,0 +1,78 @@
+import java.io.*;
+import java.util.*;
+
+//Tests a BTree with a small order and a small buffer pool against a TreeMap over random inserts, removes, range searches and reopens
+public class DiffTest {
+
+	static final int OPS = 40000;
+	static final int KEYS = 3000;
+
+	private static void check(String what, TreeMap<Integer, Long> expected, BTree t, int k) throws IOException {
+		Long addr = expected.get(k);
+		long found = t.search(k);
+		if (found != (addr == null ? 0 : addr)) {
+			throw new IllegalStateException(what+": search("+k+") returned "+found+" instead of "+addr);
+		}
+	}
+
+	private static void run(String filename, int bsize, int frames, long seed) throws IOException {
+		String what = "block size "+bsize+" frames "+frames+" seed "+seed;
+		Random rand = new Random(seed);
+		TreeMap<Integer, Long> expected = new TreeMap<Integer, Long>();
+		BTree t = new BTree(filename, bsize, frames);
+		for (int op = 0; op < OPS; op++) {
+			int k = rand.nextInt(KEYS) - KEYS / 4;
+			int choice = rand.nextInt(100);
+			if (choice < 45) {
+				long addr = 1 + rand.nextInt(1 << 20);
+				boolean added = t.insert(k, addr);
+				if (added != !expected.containsKey(k)) {
+					throw new IllegalStateException(what+": insert("+k+") returned "+added);
+				}
+				if (added) {
+					expected.put(k, addr);
+				}
+			} else if (choice < 80) {
+				Long addr = expected.remove(k);
+				long removed = t.remove(k);
+				if (removed != (addr == null ? 0 : addr)) {
+					throw new IllegalStateException(what+": remove("+k+") returned "+removed+" instead of "+addr);
+				}
+			} else if (choice < 95) {
+				int high = k + rand.nextInt(KEYS / 10);
+				LinkedList<Long> found = t.search(k, high);
+				ArrayList<Long> addrs = new ArrayList<Long>(expected.subMap(k, true, high, true).values());
+				if (!found.equals(addrs)) {
+					throw new IllegalStateException(what+": search("+k+", "+high+") returned "+found+" instead of "+addrs);
+				}
+			} else if (choice < 99) {
+				check(what, expected, t, k);
+			} else {
+				t.close();
+				t = new BTree(filename);
+			}
+		}
+		t.close();
+
+		t = new BTree(filename);
+		for (int k = -KEYS / 4; k < KEYS; k++) {
+			check(what+" reopened", expected, t, k);
+		}
+		t.close();
+		System.out.println(what+" ok");
+	}
+
+	public static void main(String args[]) throws IOException {
+		String filename = args.length > 0 ? args[0] : "diff.txt";
+		int bsizes[] = {48, 60, 128};
+		int frames[] = {1, 3, 8};
+		for (int i = 0; i < bsizes.length; i++) {
+			for (int j = 0; j < frames.length; j++) {
+				run(filename, bsizes[i], frames[j], 31 * i + j);
+			}
+		}
+		new File(filename).delete();
+		new File(filename+"Log").delete();
+		new File(filename+"Map").delete();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,316 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+//Tests the results of the bulk loaders, batched and async searches, the row cache and the table layouts against a TreeMap
+public class FeatureTest {
+
+	static final int ROWS = 3000;
+	static final int FIELDS[] = {5, 10};
+
+	private static String filename;
+
+	private static void expect(String what, Object found, Object expected) {
+		if (!found.equals(expected)) {
+			throw new IllegalStateException(what+" returned "+found+" instead of "+expected);
+		}
+	}
+
+	private static String name(long k) {
+		//field 1 of the row with key k
+		return "v"+(k % 100000000);
+	}
+
+	private static char[][] row(long k) {
+		return new char[][] {Arrays.copyOf(Long.toString(k % 1000).toCharArray(), 5), Arrays.copyOf(name(k).toCharArray(), 10)};
+	}
+
+	private static List<String> fields(long k) {
+		return Arrays.asList(Long.toString(k % 1000), name(k));
+	}
+
+	private static List<String> batch(RowBatch b) {
+		//the rows of b as key:field 0:field 1
+		ArrayList<String> rows = new ArrayList<String>();
+		for (int i = 0; i < b.size(); i++) {
+			rows.add(b.key(i)+":"+b.field(i, 0)+":"+b.field(i, 1));
+		}
+		return rows;
+	}
+
+	private static List<String> rows(Collection<Long> keys) {
+		ArrayList<String> rows = new ArrayList<String>();
+		for (long k : keys) {
+			rows.add(k+":"+(k % 1000)+":"+name(k));
+		}
+		return rows;
+	}
+
+	private static int[] shuffled(int n, long seed) {
+		//the keys 2, 4, ... 2n in random order, odd keys are not in the tree
+		int keys[] = new int[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = 2 * (i + 1);
+		}
+		Random rand = new Random(seed);
+		for (int i = n - 1; i > 0; i--) {
+			int j = rand.nextInt(i + 1);
+			int t = keys[i];
+			keys[i] = keys[j];
+			keys[j] = t;
+		}
+		return keys;
+	}
+
+	private static void treeBatches() throws IOException {
+		//bulkLoader, insertBatch, searchAddrs and searchMany of a BTree
+		TreeMap<Integer, Long> expected = new TreeMap<Integer, Long>();
+		BTree t = new BTree(filename, 60);
+		BTree.BulkLoader l = t.bulkLoader(0.7);
+		for (int k = 2; k <= 2 * ROWS; k += 2) {
+			l.add(k, 10L * k);
+			expected.put(k, 10L * k);
+		}
+		l.finish();
+
+		//half of the batch is already in the tree, and a key is repeated
+		int keys[] = shuffled(ROWS, 1);
+		long addrs[] = new long[ROWS];
+		for (int i = 0; i < ROWS; i++) {
+			keys[i] = keys[i] + (i % 2);
+			addrs[i] = 10L * keys[i] + 1;
+		}
+		keys[ROWS - 1] = keys[ROWS - 3];
+		int added = 0;
+		for (int i = 0; i < ROWS; i++) {
+			if (!expected.containsKey(keys[i])) {
+				expected.put(keys[i], addrs[i]);
+				added++;
+			}
+		}
+		expect("insertBatch", t.insertBatch(keys, addrs), added);
+		t.close();
+
+		t = new BTree(filename);
+		Random rand = new Random(2);
+		for (int r = 0; r < 50; r++) {
+			int low = rand.nextInt(2 * ROWS);
+			int high = low + rand.nextInt(200);
+			AddressList found = t.searchAddrs(low, high);
+			ArrayList<Long> list = new ArrayList<Long>();
+			for (int i = 0; i < found.size(); i++) {
+				list.add(found.get(i));
+			}
+			expect("searchAddrs("+low+", "+high+")", list, new ArrayList<Long>(expected.subMap(low, true, high, true).values()));
+
+			int probes[] = new int[rand.nextInt(300)];
+			for (int i = 0; i < probes.length; i++) {
+				probes[i] = rand.nextInt(2 * ROWS + 10) - 5;
+			}
+			long many[] = t.searchMany(probes);
+			for (int i = 0; i < probes.length; i++) {
+				Long addr = expected.get(probes[i]);
+				expect("searchMany at "+probes[i], many[i], addr == null ? 0L : addr);
+			}
+		}
+		t.close();
+		System.out.println("tree batches ok");
+	}
+
+	private static void table(String layout, DBTable t) throws IOException {
+		//bulk load, insertBatch, searchBatch and searchMany of a table, then update and updateField after reopen
+		TreeSet<Long> expected = new TreeSet<Long>();
+		long step = 1L << 33;
+		DBTable.BulkLoader l = t.bulkLoader(0.8);
+		for (long i = 1; i <= ROWS; i += 2) {
+			l.add(i * step, row(i * step));
+			expected.add(i * step);
+		}
+		l.finish();
+
+		long keys[] = new long[ROWS];
+		char batch[][][] = new char[ROWS][][];
+		for (int i = 0; i < ROWS; i++) {
+			keys[i] = (ROWS - i) * step;
+			batch[i] = row(keys[i]);
+		}
+		expect(layout+" insertBatch", t.insertBatch(keys, batch), ROWS / 2);
+		for (int i = 0; i < ROWS; i++) {
+			expected.add(keys[i]);
+		}
+		t.close();
+
+		t = new DBTable(filename);
+		Random rand = new Random(3);
+		for (int r = 0; r < 30; r++) {
+			long low = rand.nextInt(ROWS) * step;
+			long high = low + rand.nextInt(100) * step;
+			expect(layout+" searchBatch("+low+", "+high+")", batch(t.searchBatch(low, high)), rows(expected.subSet(low, true, high, true)));
+			RowBatch b = t.searchBatch(low, high, 1);
+			for (int i = 0; i < b.size(); i++) {
+				expect(layout+" searchBatch field 1 of "+b.key(i), b.field(i, 1), name(b.key(i)));
+			}
+
+			long probes[] = new long[rand.nextInt(200)];
+			TreeSet<Long> found = new TreeSet<Long>();
+			for (int i = 0; i < probes.length; i++) {
+				probes[i] = rand.nextInt(ROWS + 10) * step;
+				if (expected.contains(probes[i])) {
+					found.add(probes[i]);
+				}
+			}
+			expect(layout+" searchMany", batch(t.searchMany(probes)), rows(found));
+		}
+
+		expect(layout+" update", t.update(2 * step, row(7)), true);
+		expect(layout+" updateField", t.updateField(3 * step, 1, "changed".toCharArray()), true);
+		expect(layout+" update of a missing key", t.update((ROWS + 1) * step, row(7)), false);
+		t.close();
+
+		t = new DBTable(filename);
+		expect(layout+" search after update", t.search(2 * step), fields(7));
+		expect(layout+" search after updateField", t.search(3 * step), Arrays.asList(Long.toString(3 * step % 1000), "changed"));
+		expect(layout+" searchField after updateField", t.searchField(3 * step, 1).toString(), "changed");
+		expect(layout+" search of an unchanged row", t.search(4 * step), fields(4 * step));
+		t.close();
+		System.out.println(layout+" ok");
+	}
+
+	private static void covered() throws IOException {
+		//the covered field comes from the leaves and the other field is left empty
+		DBTable t = new DBTable(filename, FIELDS, 256, false, new int[] {1});
+		for (long k = 1; k <= ROWS; k++) {
+			t.insert(k, row(k));
+		}
+		t.close();
+
+		t = new DBTable(filename);
+		RowBatch b = t.searchBatch(100, 199, 1);
+		expect("covered searchBatch size", b.size(), 100);
+		for (int i = 0; i < b.size(); i++) {
+			expect("covered key", b.key(i), 100L + i);
+			expect("covered field 1", b.field(i, 1), name(100 + i));
+			expect("uncovered field 0", b.field(i, 0), "");
+		}
+		expect("searchBatch of a field that is not covered", batch(t.searchBatch(100, 101, 0)), rows(Arrays.asList(100L, 101L)));
+		t.close();
+		System.out.println("covered ok");
+	}
+
+	private static void async() throws IOException {
+		//the futures of the async methods have the results of the methods they run
+		DBTable t = new DBTable(filename, FIELDS, 128);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		t.setExecutor(pool);
+		ArrayList<CompletableFuture<Boolean>> inserts = new ArrayList<CompletableFuture<Boolean>>();
+		for (long k = 1; k <= 500; k++) {
+			inserts.add(t.insertAsync(k, row(k)));
+		}
+		for (CompletableFuture<Boolean> f : inserts) {
+			expect("insertAsync", f.join(), true);
+		}
+		expect("insertAsync of a key in the table", t.insertAsync(1, row(1)).join(), false);
+		for (long k = 1; k <= 500; k++) {
+			expect("searchAsync("+k+")", t.searchAsync(k).join(), fields(k));
+		}
+		expect("removeAsync", t.removeAsync(7).join(), true);
+		expect("removeAsync of a missing key", t.removeAsync(7).join(), false);
+		expect("searchAsync(5, 9)", t.searchAsync(5, 9).join().size(), 4);
+		expect("searchBatchAsync(5, 9)", batch(t.searchBatchAsync(5, 9).join()), rows(Arrays.asList(5L, 6L, 8L, 9L)));
+		pool.shutdown();
+		t.close();
+		System.out.println("async ok");
+	}
+
+	private static void rowCache() throws IOException {
+		//repeated searches hit the cache, and a changed row is never returned from it
+		DBTable t = new DBTable(filename, FIELDS, 128);
+		for (long k = 1; k <= 100; k++) {
+			t.insert(k, row(k));
+		}
+		t.search(5);
+		long hits = t.cacheHits();
+		t.search(5);
+		t.search(5);
+		expect("cache hits", t.cacheHits(), hits + 2);
+
+		t.updateField(5, 1, "new".toCharArray());
+		expect("search after updateField", t.search(5).get(1), "new");
+		t.update(5, row(6));
+		expect("search after update", t.search(5), fields(6));
+		t.remove(5);
+		expect("search after remove", t.search(5), new LinkedList<String>());
+		t.insert(5, row(9));
+		expect("search after insert", t.search(5), fields(9));
+
+		t.setRowCache(0);
+		t.search(6);
+		t.search(6);
+		expect("cache hits without a cache", t.cacheHits(), 0L);
+		t.close();
+		System.out.println("row cache ok");
+	}
+
+	private static void rowCacheRace() throws IOException, InterruptedException {
+		//readers search keys while a writer changes them, no search after the writer is done finds an old row
+		final DBTable t = new DBTable(filename, FIELDS, 128);
+		for (long k = 1; k <= 200; k++) {
+			t.insert(k, row(k));
+		}
+		final String last[] = new String[101];
+		Thread writer = new Thread(() -> {
+			try {
+				Random rand = new Random(4);
+				for (int i = 0; i < 5000; i++) {
+					int k = 1 + rand.nextInt(100);
+					t.updateField(k, 1, ("u"+i).toCharArray());
+					last[k] = "u"+i;
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		Thread readers[] = new Thread[3];
+		for (int i = 0; i < readers.length; i++) {
+			Random rand = new Random(i);
+			readers[i] = new Thread(() -> {
+				try {
+					while (writer.isAlive()) {
+						t.search(1 + rand.nextInt(200));
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+		writer.start();
+		for (int i = 0; i < readers.length; i++) {
+			readers[i].start();
+		}
+		writer.join();
+		for (int i = 0; i < readers.length; i++) {
+			readers[i].join();
+		}
+		for (int k = 1; k <= 100; k++) {
+			expect("search("+k+") after the writer", t.search(k).get(1), last[k] == null ? name(k) : last[k]);
+		}
+		t.close();
+		System.out.println("row cache race ok");
+	}
+
+	public static void main(String args[]) throws IOException, InterruptedException {
+		filename = args.length > 0 ? args[0] : "feature.txt";
+		treeBatches();
+		table("long keys", new DBTable(filename, FIELDS, 512, true));
+		table("covered long keys", new DBTable(filename, FIELDS, 512, true, new int[] {1}));
+		table("clustered long keys", new DBTable(filename, FIELDS, 512, true, true));
+		covered();
+		async();
+		rowCache();
+		rowCacheRace();
+		String ends[] = {"", "Log", "Map", "Index", "IndexLog", "IndexMap"};
+		for (int i = 0; i < ends.length; i++) {
+			new File(filename+ends[i]).delete();
+		}
+	}
+}
\ No newline at end of file
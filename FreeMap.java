@@ -0,0 +1,202 @@
+//Jackson Lee
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+public class FreeMap {
+    /*
+     * A bitmap of the fixed size slots of a file, a set bit is a slot in use
+     * Used for the blocks of a BTree and the rows of a DBTable
+     *
+     * The map is kept in memory. A second level has a bit for every word of the
+     * map that has a free slot, so a free slot near the one asked for is found
+     * without reading the free slots themselves or scanning full words.
+     *
+     * The map is saved when its file is closed and the saved copy is deleted when
+     * the file is opened, so a saved map is always up to date. After a crash there
+     * is no saved map and the owner builds a new one from the slots it still uses.
+     */
+    
+    private long[] words;
+    private long[] free;//bit w is set when words[w] has a free slot
+    private int size;//slots in the file, used or not
+    
+    public FreeMap(int slots) {
+        //a map of slots free slots
+        size = slots;
+        words = new long[Math.max(1, (slots + 63) >>> 6)];
+        free = new long[Math.max(1, (words.length + 63) >>> 6)];
+        
+        for(int w = 0; w < words.length; w++) {
+            summarize(w);
+        }
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public int allocate(int near) {
+        //mark a free slot used and return it
+        //the first free slot at or after near is taken, then the first one before it,
+        //and the file gets a new slot at the end if there is no free slot
+        
+        int slot = size == 0 ? -1 : findFree(Math.max(0, Math.min(near, size - 1)));
+        
+        if(slot < 0) {
+            slot = size;
+            size++;
+            
+            if((slot >>> 6) == words.length) {
+                words = Arrays.copyOf(words, 2 * words.length);
+                
+                if(words.length > 64 * free.length) {
+                    free = Arrays.copyOf(free, 2 * free.length);
+                }
+            }
+        }
+        
+        use(slot);
+        
+        return slot;
+    }
+    
+    public void use(int slot) {
+        words[slot >>> 6] |= 1L << slot;
+        summarize(slot >>> 6);
+    }
+    
+    public void release(int slot) {
+        words[slot >>> 6] &= ~(1L << slot);
+        free[slot >>> 12] |= 1L << (slot >>> 6);
+    }
+    
+    private int findFree(int near) {
+        int w = near >>> 6;
+        long bits = freeBits(w) & (-1L << near);
+        
+        if(bits != 0) {
+            return (w << 6) + Long.numberOfTrailingZeros(bits);
+        }
+        
+        //the words after w, then the words from the start up to w
+        int next = nextFreeWord(w + 1, words.length);
+        
+        if(next < 0) {
+            next = nextFreeWord(0, w + 1);
+        }
+        
+        if(next < 0) {
+            return -1;
+        }
+        
+        return (next << 6) + Long.numberOfTrailingZeros(freeBits(next));
+    }
+    
+    private int nextFreeWord(int from, int to) {
+        //the first word in from to to - 1 with a free slot, or -1
+        
+        for(int s = from >>> 6; (s << 6) < to; s++) {
+            long bits = free[s];
+            
+            if((s << 6) < from) {
+                bits &= -1L << from;
+            }
+            
+            if(bits != 0) {
+                int w = (s << 6) + Long.numberOfTrailingZeros(bits);
+                return w < to ? w : -1;
+            }
+        }
+        
+        return -1;
+    }
+    
+    private long freeBits(int w) {
+        //the free slots of word w, slots past the end of the file are not free
+        long bits = ~words[w];
+        int past = size - (w << 6);
+        
+        if(past <= 0) {
+            return 0;
+        }
+        
+        if(past < 64) {
+            bits &= (1L << past) - 1;
+        }
+        
+        return bits;
+    }
+    
+    private void summarize(int w) {
+        if(freeBits(w) != 0) {
+            free[w >>> 6] |= 1L << w;
+        } else {
+            free[w >>> 6] &= ~(1L << w);
+        }
+    }
+    
+    public void save(String filename) throws IOException {
+        //write the map to filename, it is read back by open
+        
+        int n = (size + 63) >>> 6;
+        ByteBuffer b = ByteBuffer.allocate(4 + 8 * n);
+        
+        b.putInt(size);
+        
+        for(int w = 0; w < n; w++) {
+            b.putLong(words[w]);
+        }
+        
+        b.flip();
+        
+        try(RandomAccessFile out = new RandomAccessFile(filename, "rw")) {
+            FileChannel c = out.getChannel();
+            c.truncate(0);
+            
+            while(b.hasRemaining()) {
+                c.write(b, b.position());
+            }
+            
+            c.force(true);
+        }
+    }
+    
+    public static FreeMap open(String filename) throws IOException {
+        //read the map saved in filename and delete the file
+        //return null if there is no saved map
+        
+        File path = new File(filename);
+        
+        if(!path.exists()) {
+            return null;
+        }
+        
+        byte[] bytes = new byte[(int) path.length()];
+        
+        try(RandomAccessFile in = new RandomAccessFile(path, "r")) {
+            in.readFully(bytes);
+        }
+        
+        path.delete();
+        
+        ByteBuffer b = ByteBuffer.wrap(bytes);
+        
+        int slots = b.remaining() < 4 ? -1 : b.getInt();
+        
+        if(slots < 0 || b.remaining() != 8L * ((slots + 63) >>> 6)) {
+            return null;
+        }
+        
+        FreeMap m = new FreeMap(slots);
+        
+        for(int w = 0; b.hasRemaining(); w++) {
+            m.words[w] = b.getLong();
+            m.summarize(w);
+        }
+        
+        return m;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,61 @@
+//Jackson Lee
+
+import java.io.*;
+import java.util.concurrent.*;
+
+class IOScheduler {
+    /*
+     * Runs the blocking operations of the async methods of BTree and DBTable
+     *
+     * The shared executor has a fixed number of daemon threads, so at most
+     * THREADS reads wait on the disk at once and the others wait in its queue.
+     * Searches on different threads overlap their reads. Changes are still
+     * synchronized on their tree or table, so they run one at a time.
+     *
+     * A tree or table can be given another executor, for example one that starts
+     * a virtual thread for each task.
+     */
+    
+    static final int THREADS = 16;
+    
+    private static ExecutorService shared;
+    
+    interface Task<T> {
+        T run() throws IOException;
+    }
+    
+    private IOScheduler() {
+    }
+    
+    static synchronized Executor shared() {
+        if(shared == null) {
+            shared = Executors.newFixedThreadPool(THREADS, r -> {
+                Thread th = new Thread(r, "io");
+                th.setDaemon(true);
+                return th;
+            });
+        }
+        
+        return shared;
+    }
+    
+    static <T> CompletableFuture<T> submit(Executor e, Task<T> task) {
+        //run task on e, the future completes with its result or the exception it throws
+        
+        CompletableFuture<T> f = new CompletableFuture<>();
+        
+        try {
+            e.execute(() -> {
+                try {
+                    f.complete(task.run());
+                } catch(Throwable t) {
+                    f.completeExceptionally(t);
+                }
+            });
+        } catch(RejectedExecutionException r) {
+            f.completeExceptionally(r);
+        }
+        
+        return f;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,125 @@
+//Jackson Lee
+
+import java.util.*;
+
+public class Keys {
+    /*
+     * Encodings of keys as byte[] for a ByteKeyTree
+     * Two encoded keys compared as unsigned bytes are in the same order as the
+     * values they encode, so every key type uses the same tree and the same
+     * prefix compression.
+     */
+    
+    private Keys() {
+    }
+    
+    public static byte[] of(int k) {
+        //big endian with the sign bit flipped, so negative keys come first
+        int v = k ^ Integer.MIN_VALUE;
+        byte[] b = new byte[4];
+        
+        for(int i = 3; i >= 0; i--) {
+            b[i] = (byte) v;
+            v >>>= 8;
+        }
+        
+        return b;
+    }
+    
+    public static byte[] of(long k) {
+        long v = k ^ Long.MIN_VALUE;
+        byte[] b = new byte[8];
+        
+        for(int i = 7; i >= 0; i--) {
+            b[i] = (byte) v;
+            v >>>= 8;
+        }
+        
+        return b;
+    }
+    
+    public static byte[] of(CharSequence s) {
+        //2 bytes for each character, the trailing null characters of a fixed length field are left out
+        int len = s.length();
+        
+        while(len > 0 && s.charAt(len - 1) == '\0') {
+            len--;
+        }
+        
+        byte[] b = new byte[2 * len];
+        
+        for(int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            b[2 * i] = (byte) (c >>> 8);
+            b[2 * i + 1] = (byte) c;
+        }
+        
+        return b;
+    }
+    
+    public static byte[] of(char[] field) {
+        return of(new String(field));
+    }
+    
+    public static byte[] composite(byte[]... parts) {
+        /*
+         * A key of several columns, ordered by the first part, then the second...
+         * Every part but the last ends with 0 1, and a 0 inside such a part is
+         * written as 0 255, so a part that is a prefix of another comes first.
+         * The last part is not changed, so the keys that start with some parts
+         * are a range of the tree.
+         */
+        
+        int len = 0;
+        
+        for(int i = 0; i < parts.length; i++) {
+            len += i == parts.length - 1 ? parts[i].length : 2 * parts[i].length + 2;
+        }
+        
+        byte[] b = new byte[len];
+        int pos = 0;
+        
+        for(int i = 0; i < parts.length - 1; i++) {
+            for(byte x : parts[i]) {
+                b[pos++] = x;
+                
+                if(x == 0) {
+                    b[pos++] = (byte) 255;
+                }
+            }
+            
+            b[pos++] = 0;
+            b[pos++] = 1;
+        }
+        
+        if(parts.length > 0) {
+            byte[] last = parts[parts.length - 1];
+            System.arraycopy(last, 0, b, pos, last.length);
+            pos += last.length;
+        }
+        
+        return Arrays.copyOf(b, pos);
+    }
+    
+    public static int toInt(byte[] b) {
+        //the int encoded by of(int)
+        int v = 0;
+        
+        for(int i = 0; i < 4; i++) {
+            v = (v << 8) | (b[i] & 0xFF);
+        }
+        
+        return v ^ Integer.MIN_VALUE;
+    }
+    
+    public static long toLong(byte[] b) {
+        //the long encoded by of(long)
+        long v = 0;
+        
+        for(int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[i] & 0xFF);
+        }
+        
+        return v ^ Long.MIN_VALUE;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,260 @@
+import java.io.*;
+import java.util.*;
+
+//Tests that a DBTable or BTree opened after a crash has every change that was synced and no part of one that was not
+public class RecoveryTest {
+
+	private static char[][] row(String s) {
+		return new char[][] {Arrays.copyOf(s.toCharArray(), 10)};
+	}
+
+	private static void reuse(String filename, boolean sync) throws IOException {
+		//the insert reuses the row that the remove freed
+		DBTable t = new DBTable(filename, new int[] {10}, 60);
+		t.insert(1, row("alpha"));
+		t.close();
+
+		t = new DBTable(filename);
+		t.remove(1);
+		t.insert(2, row("bravo"));
+		if (sync) {
+			t.sync();
+		}
+	}
+
+	private static void update(String filename, boolean sync) throws IOException {
+		//the updated field is in a secondary index
+		DBTable t = new DBTable(filename, new int[] {10}, 60);
+		t.createIndex(0);
+		t.insert(1, row("alpha"));
+		t.close();
+
+		t = new DBTable(filename);
+		t.updateField(1, 0, "zulu".toCharArray());
+		if (sync) {
+			t.sync();
+		}
+	}
+
+	static final int KEYS = 2000;
+	private static BTree tree;
+	private static boolean evicting;
+
+	private static void evict(String filename) throws IOException {
+		//a reader searches every key while the commit of an insert is written,
+		//so the pool needs frames and evicts the blocks that the insert changed
+		WriteAheadLog log = new WriteAheadLog(filename+"Log") {
+			public long commit() throws IOException {
+				if (evicting) {
+					Thread reader = new Thread(() -> {
+						try {
+							for (int k = 1; k <= KEYS; k++) {
+								tree.search(k);
+							}
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
+					reader.start();
+					try {
+						reader.join();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					Runtime.getRuntime().halt(0);
+				}
+				return super.commit();
+			}
+		};
+		tree = new BTree(filename, 60, log, 0);
+		for (int k = 1; k <= KEYS; k++) {
+			tree.insert(k, k);
+			tree.logChanges();
+			tree.committed(log.commit());
+		}
+		//after a checkpoint the log has no older copy of the blocks to replay over them
+		log.sync();
+		tree.checkpoint();
+		log.checkpoint();
+
+		evicting = true;
+		tree.insert(KEYS + 1, KEYS + 1);
+		tree.logChanges();
+		tree.committed(log.commit());
+	}
+
+	static final int READERS = 3;
+	private static int commits;
+
+	private static int crashAt(int seed) {
+		//the commit that is not written
+		return KEYS / 2 + new Random(seed).nextInt(KEYS / 2);
+	}
+
+	private static void readers(String filename, int seed) throws IOException {
+		//readers search random keys of a tree while one thread inserts,
+		//the process halts while the commit record of one of the inserts is written
+		int crashAt = crashAt(seed);
+		WriteAheadLog log = new WriteAheadLog(filename+"Log") {
+			public long commit() throws IOException {
+				if (++commits == crashAt) {
+					//give the readers time to evict the blocks of the insert
+					try {
+						Thread.sleep(20);
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					Runtime.getRuntime().halt(0);
+				}
+				return super.commit();
+			}
+		};
+		log.setGroupSize(1);
+		tree = new BTree(filename, 60, log, 0);
+		for (int i = 0; i < READERS; i++) {
+			Random keys = new Random(seed + i);
+			Thread reader = new Thread(() -> {
+				try {
+					while (true) {
+						tree.search(1 + keys.nextInt(KEYS));
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			reader.setDaemon(true);
+			reader.start();
+		}
+		for (int k = 1; k <= KEYS; k++) {
+			tree.insert(k, k);
+			tree.logChanges();
+			tree.committed(log.commit());
+			if (k % 100 == 0) {
+				//after a checkpoint the log has no older copy of the blocks to replay over them
+				tree.checkpoint();
+				log.checkpoint();
+			}
+		}
+	}
+
+	private static void crash(String scenario, String filename) throws IOException, InterruptedException {
+		//run the scenario in another JVM, which stops without closing the table
+		String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+		Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "RecoveryTest", scenario, filename)
+				.inheritIO().start();
+		if (p.waitFor() != 0) {
+			throw new IllegalStateException(scenario+" exited with "+p.exitValue());
+		}
+	}
+
+	private static void expect(String scenario, DBTable t, long key, String expected) throws IOException {
+		String found = t.search(key).toString();
+		if (!found.equals(expected)) {
+			throw new IllegalStateException(scenario+": search("+key+") returned "+found+" instead of "+expected);
+		}
+	}
+
+	private static void expectIndexed(String scenario, DBTable t, String value, String expected) throws IOException {
+		RowBatch b = t.searchBy(0, value);
+		LinkedList<Long> keys = new LinkedList<Long>();
+		for (int i = 0; i < b.size(); i++) {
+			keys.add(b.key(i));
+		}
+		if (!keys.toString().equals(expected)) {
+			throw new IllegalStateException(scenario+": searchBy(0, "+value+") returned "+keys+" instead of "+expected);
+		}
+	}
+
+	private static void delete(String filename) {
+		String ends[] = {"", "Log", "Map", "Index", "IndexLog", "IndexMap", "Indexes", "Index1", "Index1Log", "Index1Map"};
+		for (int i = 0; i < ends.length; i++) {
+			new File(filename+ends[i]).delete();
+		}
+	}
+
+	public static void main(String args[]) throws IOException, InterruptedException {
+		if (args.length == 2) {
+			if (args[0].equals("reuse")) {
+				reuse(args[1], false);
+			} else if (args[0].equals("reuseSynced")) {
+				reuse(args[1], true);
+			} else if (args[0].equals("update")) {
+				update(args[1], false);
+			} else if (args[0].equals("updateSynced")) {
+				update(args[1], true);
+			} else if (args[0].equals("evict")) {
+				evict(args[1]);
+			} else if (args[0].startsWith("readers")) {
+				readers(args[1], Integer.parseInt(args[0].substring(7)));
+			}
+			Runtime.getRuntime().halt(0);
+		}
+
+		String filename = args.length > 0 ? args[0] : "recovery.txt";
+
+		crash("reuse", filename);
+		DBTable t = new DBTable(filename);
+		expect("reuse", t, 1, "[alpha]");
+		expect("reuse", t, 2, "[]");
+		t.close();
+		System.out.println("reuse ok");
+
+		crash("reuseSynced", filename);
+		t = new DBTable(filename);
+		expect("reuseSynced", t, 1, "[]");
+		expect("reuseSynced", t, 2, "[bravo]");
+		t.close();
+		System.out.println("reuseSynced ok");
+
+		crash("update", filename);
+		t = new DBTable(filename);
+		expect("update", t, 1, "[alpha]");
+		expectIndexed("update", t, "alpha", "[1]");
+		expectIndexed("update", t, "zulu", "[]");
+		t.close();
+		System.out.println("update ok");
+
+		crash("updateSynced", filename);
+		t = new DBTable(filename);
+		expect("updateSynced", t, 1, "[zulu]");
+		expectIndexed("updateSynced", t, "alpha", "[]");
+		expectIndexed("updateSynced", t, "zulu", "[1]");
+		t.close();
+		System.out.println("updateSynced ok");
+
+		crash("evict", filename);
+		BTree b = new BTree(filename);
+		for (int k = 1; k <= KEYS; k++) {
+			if (b.search(k) != k) {
+				throw new IllegalStateException("evict: search("+k+") returned "+b.search(k));
+			}
+		}
+		if (b.search(KEYS + 1) != 0) {
+			throw new IllegalStateException("evict: the insert that was not committed is in the tree");
+		}
+		b.close();
+		System.out.println("evict ok");
+
+		for (int seed = 1; seed <= 5; seed++) {
+			crash("readers"+seed, filename);
+			b = new BTree(filename);
+			int inserted = 0;
+			while (inserted < KEYS && b.search(inserted + 1) == inserted + 1) {
+				inserted++;
+			}
+			//every commit was synced, so only the insert of the commit that was not written is lost
+			if (inserted != crashAt(seed) - 1) {
+				throw new IllegalStateException("readers "+seed+": "+inserted+" keys instead of "+(crashAt(seed) - 1));
+			}
+			for (int k = inserted + 1; k <= KEYS; k++) {
+				if (b.search(k) != 0) {
+					throw new IllegalStateException("readers "+seed+": search("+k+") found a key that was not committed");
+				}
+			}
+			b.close();
+		}
+		System.out.println("readers ok");
+
+		delete(filename);
+	}
+}
\ No newline at end of file
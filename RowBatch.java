@@ -0,0 +1,104 @@
+//Jackson Lee
+
+import java.nio.*;
+import java.util.*;
+
+public class RowBatch {
+    /*
+     * The rows returned by a range search stored by column
+     * Each field has one char[] that holds that field for every row, row i starts
+     * at i * the field length. The length of each field without the trailing null
+     * characters is kept so a field can be used without making a String.
+     */
+    
+    private int[] fieldLengths;
+    private boolean longKeys;//the rows start with a long key instead of an int
+    private long[] keys;
+    private char[][] columns;
+    private int[][] lengths;
+    private int size;
+    
+    RowBatch(int[] fL, boolean longKeys, int capacity) {
+        fieldLengths = fL;
+        this.longKeys = longKeys;
+        capacity = Math.max(1, capacity);
+        keys = new long[capacity];
+        columns = new char[fL.length][];
+        lengths = new int[fL.length][];
+        size = 0;
+        
+        for(int i = 0; i < fL.length; i++) {
+            columns[i] = new char[capacity * fL[i]];
+            lengths[i] = new int[capacity];
+        }
+    }
+    
+    void add(ByteBuffer row) {
+        //row is positioned at the start of an encoded row: the key then the characters of each field
+        
+        if(size == keys.length) {
+            grow();
+        }
+        
+        keys[size] = longKeys ? row.getLong() : row.getInt();
+        
+        for(int i = 0; i < fieldLengths.length; i++) {
+            char[] column = columns[i];
+            int start = size * fieldLengths[i];
+            int len = 0;
+            
+            for(int j = 0; j < fieldLengths[i]; j++) {
+                char c = row.getChar();
+                column[start + j] = c;
+                
+                if(c != '\0') {
+                    len = j + 1;
+                }
+            }
+            
+            lengths[i][size] = len;
+        }
+        
+        size++;
+    }
+    
+    private void grow() {
+        int capacity = 2 * keys.length;
+        keys = Arrays.copyOf(keys, capacity);
+        
+        for(int i = 0; i < fieldLengths.length; i++) {
+            columns[i] = Arrays.copyOf(columns[i], capacity * fieldLengths[i]);
+            lengths[i] = Arrays.copyOf(lengths[i], capacity);
+        }
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    public long key(int row) {
+        return keys[row];
+    }
+    
+    public String field(int row, int field) {
+        //the field as a String without the trailing null characters
+        return new String(columns[field], offset(row, field), length(row, field));
+    }
+    
+    public char[] column(int field) {
+        //the characters of one field for every row, use offset and length to find a row
+        return columns[field];
+    }
+    
+    public int offset(int row, int field) {
+        return row * fieldLengths[field];
+    }
+    
+    public int length(int row, int field) {
+        return lengths[field][row];
+    }
+}
\ No newline at end of file
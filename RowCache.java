@@ -0,0 +1,124 @@
+//Jackson Lee
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+class RowCache {
+    /*
+     * The bytes of recently read rows of a DBTable, by key
+     * A hot key is found without the B+Tree and without reading the rows file.
+     *
+     * Rows have one size, so the bytes the cache may use give a number of slots.
+     * The slots are replaced like the frames of a BufferPool: the CLOCK hand
+     * skips a row that was found since the hand last passed it. A lookup does
+     * not lock, only adding a row and invalidating one are synchronized.
+     *
+     * A change invalidates its key after it is made and moves the version of
+     * the key's stripe on. A row read before a change is only added if that
+     * version has not moved since it was read, so a search that raced with the
+     * change cannot add the old row. A change only stops the adding of rows
+     * whose keys share its stripe, so the cache keeps filling under writes.
+     */
+    
+    private static class Entry {
+        private final long key;
+        private final byte[] row;
+        private final int slot;
+        private volatile boolean referenced;
+        
+        private Entry(long k, byte[] r, int s) {
+            key = k;
+            row = r;
+            slot = s;
+        }
+    }
+    
+    static final int ENTRY_BYTES = 64;//the map entry, the Entry and the array header of one row
+    static final int STRIPES = 1024;//versions of keys, key k uses stripe stripe(k)
+    
+    private ConcurrentHashMap<Long, Entry> table;
+    private Entry[] slots;
+    private int hand;
+    private AtomicLongArray versions;
+    private LongAdder hits;
+    private LongAdder misses;
+    
+    RowCache(long bytes, int rowSize) {
+        //a cache that uses about bytes for rows of rowSize bytes, no rows are kept if bytes is too small for one
+        slots = new Entry[(int) Math.min(Integer.MAX_VALUE - 8, bytes / (rowSize + ENTRY_BYTES))];
+        table = new ConcurrentHashMap<>();
+        hand = 0;
+        versions = new AtomicLongArray(STRIPES);
+        hits = new LongAdder();
+        misses = new LongAdder();
+    }
+    
+    byte[] get(long key) {
+        //the cached row with the key, or null, the caller must not change it
+        
+        if(slots.length == 0) {
+            return null;
+        }
+        
+        Entry e = table.get(key);
+        
+        if(e == null) {
+            misses.increment();
+            return null;
+        }
+        
+        e.referenced = true;
+        hits.increment();
+        
+        return e.row;
+    }
+    
+    private static int stripe(long key) {
+        return (int) (key ^ (key >>> 32)) & (STRIPES - 1);
+    }
+    
+    long version(long key) {
+        return versions.get(stripe(key));
+    }
+    
+    synchronized void put(long key, byte[] row, long seen) {
+        //add the row with the key, read when version(key) was seen
+        
+        if(slots.length == 0 || seen != version(key) || table.containsKey(key)) {
+            return;
+        }
+        
+        while(slots[hand] != null && slots[hand].referenced) {
+            slots[hand].referenced = false;
+            hand = (hand + 1) % slots.length;
+        }
+        
+        if(slots[hand] != null) {
+            table.remove(slots[hand].key);
+        }
+        
+        Entry e = new Entry(key, row, hand);
+        slots[hand] = e;
+        table.put(key, e);
+        hand = (hand + 1) % slots.length;
+    }
+    
+    synchronized void invalidate(long key) {
+        //PRE: the change to the row with the key is made
+        versions.incrementAndGet(stripe(key));
+        
+        Entry e = table.remove(key);
+        
+        if(e != null) {
+            slots[e.slot] = null;
+        }
+    }
+    
+    long hits() {
+        return hits.sum();
+    }
+    
+    long misses() {
+        return misses.sum();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,52 @@
+import java.io.*;
+import java.util.*;
+
+//Tests a BTree whose buffer pool has fewer frames than one insert can change
+public class SmallPoolTest {
+
+	static final int KEYS = 20000;
+
+	private static void run(String filename, int frames) throws IOException {
+		int keys[] = new int[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = i;
+		}
+		Random rand = new Random(frames);
+		for (int i = KEYS - 1; i > 0; i--) {
+			int j = rand.nextInt(i + 1);
+			int t = keys[i];
+			keys[i] = keys[j];
+			keys[j] = t;
+		}
+
+		BTree t = new BTree(filename, 60, frames);
+		for (int i = 0; i < KEYS; i++) {
+			t.insert(keys[i], keys[i] + 1);
+		}
+		for (int i = 0; i < KEYS; i += 2) {
+			t.remove(keys[i]);
+		}
+		t.close();
+
+		t = new BTree(filename);
+		for (int i = 0; i < KEYS; i++) {
+			long expected = i % 2 == 0 ? 0 : keys[i] + 1;
+			if (t.search(keys[i]) != expected) {
+				throw new IllegalStateException(frames+" frames: search("+keys[i]+") returned "+t.search(keys[i]));
+			}
+		}
+		t.close();
+		System.out.println(frames+" frames ok");
+	}
+
+	public static void main(String args[]) throws IOException {
+		String filename = args.length > 0 ? args[0] : "smallPool.txt";
+		int frames[] = {1, 4, 16};
+		for (int i = 0; i < frames.length; i++) {
+			run(filename, frames[i]);
+		}
+		new File(filename).delete();
+		new File(filename+"Log").delete();
+		new File(filename+"Map").delete();
+	}
+}
\ No newline at end of file
@@ -0,0 +1,221 @@
+//Jackson Lee
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+public class WriteAheadLog {
+    /*
+     * A redo log shared by the files of a table
+     *
+     * Every change is logged as the new bytes for a range of one of the files.
+     * A group of changes becomes durable when its commit record is synced.
+     * Commit records are synced together, once for every groupSize commits or
+     * when sync is called, so an insert does not wait for an fsync.
+     *
+     * Records: type, file, addr, length, the bytes, and a CRC32 of the record.
+     * Replay applies the changes of every complete group that ends with a commit
+     * and ignores anything after the last good commit.
+     *
+     * The methods are synchronized, a buffer pool can sync the log from a
+     * reading thread while a writer is logging.
+     */
+    
+    RandomAccessFile log;
+    FileChannel lc;
+    ByteBuffer pending;//records that are not written to the log yet
+    volatile long size;//bytes already written to the log
+    int unsynced;//commits that are not durable yet
+    int groupSize;
+    
+    static final int GROUP_COMMIT = 64;
+    static final int PAGE = 1;
+    static final int COMMIT = 2;
+    static final int RECORD_HEADER = 20;
+    
+    public WriteAheadLog(String filename) throws IOException {
+        //start a new empty log, an existing log must be recovered first
+        
+        log = new RandomAccessFile(filename, "rw");
+        lc = log.getChannel();
+        lc.truncate(0);
+        size = 0;
+        pending = ByteBuffer.allocate(4096);
+        unsynced = 0;
+        groupSize = GROUP_COMMIT;
+    }
+    
+    public synchronized void setGroupSize(int commits) {
+        //number of commits that are made durable by one sync
+        groupSize = Math.max(1, commits);
+    }
+    
+    synchronized void write(int file, long addr, ByteBuffer data) {
+        //log the bytes from data's position to its limit as the new contents of file at addr
+        
+        int len = data.remaining();
+        reserve(RECORD_HEADER + len + 8);
+        
+        int start = pending.position();
+        pending.putInt(PAGE);
+        pending.putInt(file);
+        pending.putLong(addr);
+        pending.putInt(len);
+        pending.put(data.duplicate());
+        pending.putLong(crc(pending, start));
+    }
+    
+    public synchronized long commit() throws IOException {
+        //everything logged since the last commit is applied together by replay
+        //return where the commit record ends, the group is durable once the log is synced to it
+        
+        reserve(RECORD_HEADER + 8);
+        
+        int start = pending.position();
+        pending.putInt(COMMIT);
+        pending.putInt(0);
+        pending.putLong(0);
+        pending.putInt(0);
+        pending.putLong(crc(pending, start));
+        
+        long end = end();
+        unsynced++;
+        
+        if(unsynced >= groupSize) {
+            sync();
+        }
+        
+        return end;
+    }
+    
+    public synchronized void sync() throws IOException {
+        //write the pending records and force them to disk
+        
+        if(pending.position() == 0) {
+            return;
+        }
+        
+        pending.flip();
+        
+        while(pending.hasRemaining()) {
+            size += lc.write(pending, size);
+        }
+        
+        pending.clear();
+        lc.force(false);
+        unsynced = 0;
+    }
+    
+    synchronized void syncTo(long pos) throws IOException {
+        //make the log durable at least up to pos, a value returned by end
+        if(pos > size) {
+            sync();
+        }
+    }
+    
+    synchronized long end() {
+        //the position in the log after the last record, once size reaches it the record is durable
+        return size + pending.position();
+    }
+    
+    synchronized void checkpoint() throws IOException {
+        //PRE: every change in the log has been written to the files and forced
+        pending.clear();
+        unsynced = 0;
+        lc.truncate(0);
+        lc.force(false);
+        size = 0;
+    }
+    
+    synchronized void close() throws IOException {
+        log.close();
+    }
+    
+    private void reserve(int bytes) {
+        if(pending.remaining() < bytes) {
+            ByteBuffer b = ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + bytes));
+            pending.flip();
+            b.put(pending);
+            pending = b;
+        }
+    }
+    
+    private static long crc(ByteBuffer b, int start) {
+        CRC32 c = new CRC32();
+        c.update(b.array(), start, b.position() - start);
+        return c.getValue();
+    }
+    
+    static void recover(String filename, String[] files) throws IOException {
+        /*
+         * Apply the committed changes in the log to the files and empty the log
+         * files are listed in the order of the file numbers used in the records
+         */
+        
+        File path = new File(filename);
+        
+        if(!path.exists() || path.length() == 0) {
+            return;
+        }
+        
+        byte[] bytes = new byte[(int) path.length()];
+        RandomAccessFile in = new RandomAccessFile(path, "rw");
+        in.readFully(bytes);
+        
+        ByteBuffer b = ByteBuffer.wrap(bytes);
+        ArrayList<int[]> group = new ArrayList<>();
+        ArrayList<Long> groupAddrs = new ArrayList<>();
+        RandomAccessFile[] out = new RandomAccessFile[files.length];
+        
+        for(int i = 0; i < files.length; i++) {
+            out[i] = new RandomAccessFile(files[i], "rw");
+        }
+        
+        while(b.remaining() >= RECORD_HEADER + 8) {
+            int start = b.position();
+            int type = b.getInt();
+            int file = b.getInt();
+            long addr = b.getLong();
+            int len = b.getInt();
+            
+            if(len < 0 || len + 8 > b.remaining() || file < 0 || file >= files.length) {
+                break;
+            }
+            
+            b.position(b.position() + len);
+            
+            if(crc(b, start) != b.getLong()) {
+                break;
+            }
+            
+            if(type == PAGE) {
+                //the offset of the bytes in the log, the length and the file
+                int[] r = {start + RECORD_HEADER, len, file};
+                group.add(r);
+                groupAddrs.add(addr);
+            } else if(type == COMMIT) {
+                for(int i = 0; i < group.size(); i++) {
+                    int[] r = group.get(i);
+                    out[r[2]].seek(groupAddrs.get(i));
+                    out[r[2]].write(bytes, r[0], r[1]);
+                }
+                
+                group.clear();
+                groupAddrs.clear();
+            } else {
+                break;
+            }
+        }
+        
+        for(int i = 0; i < files.length; i++) {
+            out[i].getFD().sync();
+            out[i].close();
+        }
+        
+        in.setLength(0);
+        in.getFD().sync();
+        in.close();
+    }
+}
\ No newline at end of file
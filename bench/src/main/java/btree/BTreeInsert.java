@@ -0,0 +1,66 @@
+package btree;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//BTree.insert of KEYS keys into an empty tree, in ascending, descending and random order
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BTreeInsert {
+
+    static final int KEYS = 10000;
+
+    @Param({"sequential", "reverse", "random"})
+    String order;
+
+    @Param({"60", "512", "4096"})
+    int blockSize;
+
+    private BenchFiles files;
+    private int[] keys;
+    private BTree tree;
+
+    @Setup(Level.Trial)
+    public void keys() throws IOException {
+        files = new BenchFiles();
+        keys = new int[KEYS];
+        if (order.equals("random")) {
+            keys = BenchFiles.shuffled(KEYS, 1);
+        } else {
+            for (int i = 0; i < KEYS; i++) {
+                keys[i] = 2 * (order.equals("sequential") ? i : KEYS - 1 - i);
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void open() throws IOException {
+        tree = new BTree(files.file("insert"), blockSize);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(KEYS)
+    public BTree insert() throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            tree.insert(keys[i], keys[i] + 1);
+        }
+        return tree;
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws IOException {
+        tree.close();
+        files.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        files.delete();
+    }
+}
\ No newline at end of file
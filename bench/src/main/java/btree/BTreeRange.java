@@ -0,0 +1,56 @@
+package btree;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//BTree.search(low, high) of ranges that hold a given fraction of the keys
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BTreeRange {
+
+    static final int PROBES = 1 << 10;
+
+    @Param({"60", "512", "4096"})
+    int blockSize;
+
+    @Param({"0.0001", "0.01", "0.1"})
+    double selectivity;
+
+    private BenchFiles files;
+    private BTree tree;
+    private int[] lows;
+    private int width;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void build() throws IOException {
+        files = new BenchFiles();
+        tree = BTreeSearch.build(files, blockSize);
+        width = (int) (2 * BTreeSearch.KEYS * selectivity);
+        lows = new int[PROBES];
+        Random rand = new Random(3);
+        for (int i = 0; i < PROBES; i++) {
+            lows[i] = rand.nextInt(2 * BTreeSearch.KEYS - width);
+        }
+    }
+
+    @Benchmark
+    public LinkedList<Long> range() throws IOException {
+        next = (next + 1) & (PROBES - 1);
+        return tree.search(lows[next], lows[next] + width);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        tree.close();
+        files.delete();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,80 @@
+package btree;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//BTree.search(int) of keys that are in the tree and keys that are not
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BTreeSearch {
+
+    static final int KEYS = 100000;
+    static final int PROBES = 1 << 12;
+
+    @Param({"60", "512", "4096"})
+    int blockSize;
+
+    private BenchFiles files;
+    private BTree tree;
+
+    @State(Scope.Thread)
+    public static class Probes {
+        //each thread goes through its own random keys
+        int[] hits = new int[PROBES];
+        int[] misses = new int[PROBES];
+        int next;
+
+        @Setup(Level.Trial)
+        public void probes() {
+            Random rand = new Random(Thread.currentThread().getId());
+            for (int i = 0; i < PROBES; i++) {
+                hits[i] = 2 * rand.nextInt(KEYS);
+                misses[i] = hits[i] + 1;
+            }
+        }
+
+        int next() {
+            next = (next + 1) & (PROBES - 1);
+            return next;
+        }
+    }
+
+    static BTree build(BenchFiles files, int blockSize) throws IOException {
+        //a tree of the even keys below 2 * KEYS, added in a random order
+        BTree tree = new BTree(files.file("search"), blockSize);
+        int[] keys = BenchFiles.shuffled(KEYS, 2);
+        for (int i = 0; i < KEYS; i++) {
+            tree.insert(keys[i], keys[i] + 1);
+        }
+        return tree;
+    }
+
+    @Setup(Level.Trial)
+    public void build() throws IOException {
+        files = new BenchFiles();
+        tree = build(files, blockSize);
+    }
+
+    @Benchmark
+    public long hit(Probes p) throws IOException {
+        return tree.search(p.hits[p.next()]);
+    }
+
+    @Benchmark
+    public long miss(Probes p) throws IOException {
+        return tree.search(p.misses[p.next()]);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        tree.close();
+        files.delete();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,62 @@
+package btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+//The files of the trees and tables a benchmark makes, in a directory of its own
+class BenchFiles {
+
+    private final File dir;
+
+    BenchFiles() throws IOException {
+        dir = Files.createTempDirectory("btree-bench").toFile();
+    }
+
+    String file(String name) {
+        return new File(dir, name).getPath();
+    }
+
+    void clear() {
+        //delete every file, the trees and tables in the directory must be closed
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+    }
+
+    void delete() {
+        clear();
+        dir.delete();
+    }
+
+    static char[][] fields(int[] lengths, int key) {
+        //a row whose fields are filled with letters that depend on the key
+        char[][] f = new char[lengths.length][];
+        for (int i = 0; i < lengths.length; i++) {
+            f[i] = new char[lengths[i]];
+            for (int j = 0; j < lengths[i]; j++) {
+                f[i][j] = (char) ('a' + (key + i + j) % 26);
+            }
+        }
+        return f;
+    }
+
+    static int[] shuffled(int n, long seed) {
+        //the even numbers below 2n in a random order, odd keys are misses
+        int[] keys = new int[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = 2 * i;
+        }
+        java.util.Random rand = new java.util.Random(seed);
+        for (int i = n - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int t = keys[i];
+            keys[i] = keys[j];
+            keys[j] = t;
+        }
+        return keys;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,28 @@
+package btree;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+//Runs the benchmarks like org.openjdk.jmh.Main, with the gc profiler so the allocation rate is reported
+//Usage: java -jar target/benchmarks.jar [JMH options] [benchmark patterns]
+public class BenchMain {
+
+    public static void main(String args[]) throws CommandLineOptionException, RunnerException, IOException {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        Runner runner = new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build());
+
+        if (cmd.shouldHelp()) {
+            cmd.showHelp();
+        } else if (cmd.shouldList()) {
+            runner.list();
+        } else {
+            runner.run();
+        }
+    }
+}
\ No newline at end of file
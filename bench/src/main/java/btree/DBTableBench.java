@@ -0,0 +1,100 @@
+package btree;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//DBTable.insert and DBTable.search(long) for the field lengths of the tables in the H6 drivers
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DBTableBench {
+
+    static final int ROWS = 5000;
+    static final int PROBES = 1 << 12;
+
+    //the block sizes the H6 drivers use for each shape
+    @Param({"10,20:60", "5,10,30:72", "35:132"})
+    String shape;
+
+    private BenchFiles files;
+    private int[] lengths;
+    private int blockSize;
+    private int[] keys;
+    private char[][][] rows;
+    private DBTable searched;
+    private int[] probes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void build() throws IOException {
+        files = new BenchFiles();
+        String[] parts = shape.split(":");
+        String[] f = parts[0].split(",");
+        lengths = new int[f.length];
+        for (int i = 0; i < f.length; i++) {
+            lengths[i] = Integer.parseInt(f[i]);
+        }
+        blockSize = Integer.parseInt(parts[1]);
+
+        keys = BenchFiles.shuffled(ROWS, 4);
+        rows = new char[ROWS][][];
+        for (int i = 0; i < ROWS; i++) {
+            rows[i] = BenchFiles.fields(lengths, keys[i]);
+        }
+
+        searched = new DBTable(files.file("search"), lengths, blockSize);
+        for (int i = 0; i < ROWS; i++) {
+            searched.insert(keys[i], rows[i]);
+        }
+
+        probes = new int[PROBES];
+        Random rand = new Random(5);
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = keys[rand.nextInt(ROWS)];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Empty {
+        //a new table for each invocation of insert
+        DBTable table;
+
+        @Setup(Level.Invocation)
+        public void open(DBTableBench b) throws IOException {
+            table = new DBTable(b.files.file("insert"), b.lengths, b.blockSize);
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() throws IOException {
+            table.close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public DBTable insert(Empty e) throws IOException {
+        for (int i = 0; i < ROWS; i++) {
+            e.table.insert(keys[i], rows[i]);
+        }
+        return e.table;
+    }
+
+    @Benchmark
+    public LinkedList<String> search() throws IOException {
+        next = (next + 1) & (PROBES - 1);
+        return searched.search(probes[next]);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        searched.close();
+        files.delete();
+    }
+}
\ No newline at end of file
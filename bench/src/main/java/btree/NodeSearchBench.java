@@ -0,0 +1,81 @@
+package btree;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+//Compares the binary search used inside BTree nodes with the linear scan it replaced
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeSearchBench {
+
+    static final int PROBES = 1 << 16;
+
+    @Param({"60", "512", "4096", "16384"})
+    int blockSize;
+
+    private int[] keys;
+    private int size;
+    private int[] probes;
+
+    @Setup(Level.Trial)
+    public void node() {
+        //a full non leaf node of a tree with block size blockSize
+        Random rand = new Random(12);
+        size = blockSize/12 - 2;
+        keys = new int[size];
+
+        int k = 0;
+        for (int i = 0; i < size; i++) {
+            k += 1 + rand.nextInt(10);
+            keys[i] = k;
+        }
+
+        probes = new int[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            probes[i] = rand.nextInt(k + 10);
+        }
+
+        for (int i = 0; i < PROBES; i++) {
+            if (linearChildIndex(keys, size, probes[i]) != BTree.childIndex(keys, size, probes[i])) {
+                throw new IllegalStateException("binary and linear search disagree on "+probes[i]);
+            }
+        }
+    }
+
+    private static int linearChildIndex(int[] keys, int size, int k) {
+        //the scan BTree.search used before binary search
+        int i;
+        for (i = 0; i < size; i++) {
+            if (k < keys[i]) {
+                break;
+            }
+        }
+        return i;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROBES)
+    public int linear() {
+        int s = 0;
+        for (int i = 0; i < PROBES; i++) {
+            s += linearChildIndex(keys, size, probes[i]);
+        }
+        return s;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROBES)
+    public int binary() {
+        int s = 0;
+        for (int i = 0; i < PROBES; i++) {
+            s += BTree.childIndex(keys, size, probes[i]);
+        }
+        return s;
+    }
+}
\ No newline at end of file